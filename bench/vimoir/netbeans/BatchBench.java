@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Send 1000 addAnno commands with send_cmd and with a batch, and measure the
+ * time until Vim has received all of them, and the number of write system
+ * calls from /proc/self/io (Linux only). The count includes the write that
+ * wakes up the selector.
+ *
+ * <p> The commands are sent from the select loop thread, as by an event
+ * method with the inline executor, and from another thread, as with the
+ * serial executor. In both cases the commands are queued faster than the
+ * Reactor writes them, and send_cmd costs the same writes as a batch.
+ *
+ * <p> The paced case sends the commands one at a time from another thread,
+ * as a client does on successive events, and the Reactor drains the output
+ * between them: each send_cmd costs a wakeup and a write, the batch of the
+ * same commands costs one of each.
+ *
+ * <p> The queue entries are counted while the Reactor is held: send_cmd
+ * queues one entry per command, a batch a single entry. This is checked.
+ */
+public class BatchBench {
+    static final int COUNT = 1000;
+    static final int ROUNDS = 20;
+    static final int PACED = 100;
+
+    public static void main(String[] args) throws Exception {
+        Loopback session = new Loopback();
+        NetbeansBuffer buf = session.nbsock.get_buffer("/tmp/foo.c");
+        for (int i = 0; i < 2; i++) {
+            boolean loop = (i == 0);
+            String thread = loop ? "select loop" : "other thread";
+            measure("send_cmd x" + COUNT + ", " + thread, session, buf, false, loop);
+            measure("batch, " + thread, session, buf, true, loop);
+        }
+        paced("send_cmd x" + PACED + ", paced", session, buf, false);
+        paced("batch of " + PACED + ", paced", session, buf, true);
+        queue_entries(session, buf);
+        session.close();
+    }
+
+    /**
+     * Send PACED commands from this thread and wait for each one to be
+     * received by Vim before sending the next one. The batch is flushed
+     * once.
+     */
+    static void paced(String name, Loopback session, NetbeansBuffer buf,
+                                        boolean batch) throws Exception {
+        Netbeans nbsock = session.nbsock;
+        long[] times = new long[ROUNDS];
+        long[] writes = new long[ROUNDS];
+        for (int r = 0; r < ROUNDS; r++) {
+            long syscw = syscw();
+            long start = System.nanoTime();
+            if (batch) {
+                NetbeansBatch commands = nbsock.batch();
+                for (int i = 0; i < PACED; i++)
+                    commands.send_cmd(buf, "addAnno", (i + 1) + " 1 " + i + "/0 -1");
+                commands.flush();
+                for (int i = 0; i < PACED; i++)
+                    session.read_line();
+            } else {
+                for (int i = 0; i < PACED; i++) {
+                    nbsock.send_cmd(buf, "addAnno", (i + 1) + " 1 " + i + "/0 -1");
+                    session.read_line();
+                }
+            }
+            times[r] = System.nanoTime() - start;
+            writes[r] = syscw < 0 ? -1 : syscw() - syscw;
+        }
+        Arrays.sort(times);
+        Arrays.sort(writes);
+        System.out.println(name + ": median " + Bench.format(Bench.percentile(times, 50))
+                + ", " + Bench.percentile(writes, 50) + " write(s)");
+    }
+
+    /**
+     * Count the entries of the output queue after COUNT commands sent while
+     * the Reactor is held, with send_cmd and with a batch.
+     */
+    static void queue_entries(Loopback session, NetbeansBuffer buf)
+                                                        throws Exception {
+        Netbeans nbsock = session.nbsock;
+        int[] entries = new int[2];
+        for (int b = 0; b < 2; b++) {
+            final CountDownLatch held = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            nbsock.reactor.execute(new Runnable() {
+                public void run() {
+                    held.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) { /* ignore */ }
+                }
+            });
+            held.await();
+            if (b == 1) {
+                NetbeansBatch commands = nbsock.batch();
+                for (int i = 0; i < COUNT; i++)
+                    commands.send_cmd(buf, "addAnno", (i + 1) + " 1 " + i + "/0 -1");
+                commands.flush();
+            } else {
+                for (int i = 0; i < COUNT; i++)
+                    nbsock.send_cmd(buf, "addAnno", (i + 1) + " 1 " + i + "/0 -1");
+            }
+            entries[b] = nbsock.output_queue.size();
+            release.countDown();
+            for (int i = 0; i < COUNT; i++)
+                session.read_line();
+        }
+        System.out.println("queue entries for " + COUNT + " commands: send_cmd "
+                + entries[0] + ", batch " + entries[1]);
+        if (entries[0] != COUNT || entries[1] != 1)
+            throw new AssertionError("unexpected queue entries: "
+                                        + entries[0] + ", " + entries[1]);
+    }
+
+    static void measure(String name, Loopback session, final NetbeansBuffer buf,
+                    final boolean batch, boolean loop) throws Exception {
+        final Netbeans nbsock = session.nbsock;
+        Runnable task = new Runnable() {
+            public void run() {
+                if (batch) {
+                    NetbeansBatch commands = nbsock.batch();
+                    for (int i = 0; i < COUNT; i++)
+                        commands.send_cmd(buf, "addAnno", (i + 1) + " 1 " + i + "/0 -1");
+                    commands.flush();
+                } else {
+                    for (int i = 0; i < COUNT; i++)
+                        nbsock.send_cmd(buf, "addAnno", (i + 1) + " 1 " + i + "/0 -1");
+                }
+            }
+        };
+        long[] times = new long[ROUNDS];
+        long[] writes = new long[ROUNDS];
+        for (int r = 0; r < ROUNDS; r++) {
+            long syscw = syscw();
+            long start = System.nanoTime();
+            if (loop)
+                nbsock.reactor.execute(task);
+            else
+                task.run();
+            for (int i = 0; i < COUNT; i++)
+                session.read_line();
+            times[r] = System.nanoTime() - start;
+            writes[r] = syscw < 0 ? -1 : syscw() - syscw;
+        }
+        Arrays.sort(times);
+        Arrays.sort(writes);
+        System.out.println(name + ": median " + Bench.format(Bench.percentile(times, 50))
+                + ", " + Bench.percentile(writes, 50) + " write(s)");
+    }
+
+    /** Return the number of write system calls of the process, or -1. */
+    static long syscw() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/io"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("syscw:"))
+                        return Long.parseLong(line.substring(6).trim());
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
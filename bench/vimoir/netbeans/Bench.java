@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Arrays;
+
+/**
+ * Timing helpers of the benchmarks.
+ *
+ * <p> A task is run for a warm up period so that it is compiled by the JIT,
+ * then timed over several rounds, and the median round is reported.
+ */
+class Bench {
+    static final int ROUNDS = 7;
+    static final long WARMUP_MS = 500;
+    /** Defeat dead code elimination. */
+    static volatile long sink;
+
+    /** A benchmarked operation, run() returns a value to sink. */
+    interface Task {
+        long run() throws Exception;
+    }
+
+    /**
+     * Return the median time in nanoseconds of one invocation of task, over
+     * ROUNDS rounds of <code>count</code> invocations.
+     */
+    static double time(Task task, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + WARMUP_MS;
+        while (System.currentTimeMillis() < deadline)
+            sink += task.run();
+        double[] rounds = new double[ROUNDS];
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                sink += task.run();
+            rounds[r] = (System.nanoTime() - start) / (double) count;
+        }
+        Arrays.sort(rounds);
+        return rounds[ROUNDS / 2];
+    }
+
+    /**
+     * Return the number of bytes allocated by one invocation of task, or -1
+     * when the JVM does not measure the allocations of a thread.
+     */
+    static long allocated(Task task, int count) throws Exception {
+        java.lang.management.ThreadMXBean bean =
+                    java.lang.management.ManagementFactory.getThreadMXBean();
+        if (! (bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean mxbean =
+                                    (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        long start = mxbean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < count; i++)
+            sink += task.run();
+        return (mxbean.getThreadAllocatedBytes(id) - start) / count;
+    }
+
+    /** Return the value at <code>percent</code> of the sorted samples. */
+    static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /** Format a duration in nanoseconds with a unit. */
+    static String format(double ns) {
+        if (Double.isNaN(ns))
+            return "not run";
+        if (ns < 1e3)
+            return String.format("%.1f ns", ns);
+        if (ns < 1e6)
+            return String.format("%.2f us", ns / 1e3);
+        if (ns < 1e9)
+            return String.format("%.2f ms", ns / 1e6);
+        return String.format("%.2f s", ns / 1e9);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+/**
+ * Run the benchmarks: the main() method of each class whose name ends with
+ * "Bench" in the classes directory, or of the classes given as arguments.
+ *
+ * <p> Usage: Benchmarks CLASSES_DIR [NAME...]
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        String[] names = new String[args.length - 1];
+        System.arraycopy(args, 1, names, 0, names.length);
+        if (names.length == 0)
+            names = find(new File(args[0], "vimoir/netbeans"), "Bench");
+        for (int i = 0; i < names.length; i++) {
+            Class clazz = Class.forName("vimoir.netbeans." + names[i]);
+            Method main = clazz.getMethod("main", new Class[] { String[].class });
+            System.out.println("==== " + names[i]);
+            main.invoke(null, new Object[] { new String[0] });
+        }
+    }
+
+    /** Return the sorted names of the classes of dir ending with suffix. */
+    static String[] find(File dir, String suffix) {
+        java.util.TreeSet result = new java.util.TreeSet();
+        String[] files = dir.list();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].substring(0, files[i].length() - 6);
+            if (files[i].endsWith(suffix + ".class")
+                    && name.length() > suffix.length() && name.indexOf('$') == -1)
+                result.add(name);
+        }
+        return (String[]) result.toArray(new String[result.size()]);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+
+/**
+ * The throughput of the framing of the lines read from Vim, on a large paste
+ * of insert events fed by 4 KB reads as from the channel.
+ *
+ * <p> The "decode then split" case is the framing used before the lines were
+ * framed on bytes: each read is decoded to a String that is split on the
+ * terminator, and the parts of a line are collected in a StringBuffer. It
+ * is only measured with ASCII text, as it fails on a multi-byte character
+ * split across two reads.
+ */
+public class FramingBench {
+    static final int SIZE = 8 * 1024 * 1024;
+    static final int READ_SIZE = Asynchat.BUFFER_SIZE;
+
+    /** An Asynchat counting the lines and their characters. */
+    static class Sink extends Asynchat {
+        String line = null;
+        long count = 0;
+
+        Sink() throws IOException {
+            super();
+        }
+
+        void collect_incoming_data(String str) {
+            this.line = str;
+        }
+
+        void found_terminator() {
+            if (this.line != null)
+                this.count += this.line.length();
+            this.line = null;
+        }
+
+        void handle_accept(SocketChannel channel) {}
+        void handle_connect() {}
+        void handle_tick() {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[] ascii = paste("the quick brown fox jumps over the lazy dog ")
+                                                            .getBytes(utf8);
+        byte[] multi = paste(
+            "le c\u0153ur \u00e0 l'\u00e9t\u00e9, \u6771\u4eac \u306e \u591c ")
+                                                            .getBytes(utf8);
+        report("decode then split, ASCII", ascii, old_framing(ascii, utf8));
+        report("byte framing, ASCII", ascii, byte_framing(ascii, utf8));
+        report("byte framing, UTF-8", multi, byte_framing(multi, utf8));
+    }
+
+    /** Return about SIZE bytes of insert events of <code>text</code>. */
+    static String paste(String text) {
+        StringBuffer buffer = new StringBuffer(SIZE);
+        for (int i = 0; buffer.length() < SIZE / 2; i++) {
+            buffer.append("1:insert=").append(i).append(" ").append(i * 64)
+                .append(" \"").append(text).append(text).append("\"\n");
+        }
+        return buffer.toString();
+    }
+
+    static void report(String name, byte[] bytes, double ns) {
+        System.out.println(name + ": " + Bench.format(ns) + " per "
+            + (bytes.length >> 20) + " MB, "
+            + String.format("%.0f MB/s", bytes.length / ns * 1e9 / (1 << 20)));
+    }
+
+    static double byte_framing(final byte[] bytes, Charset charset)
+                                                            throws Exception {
+        final Sink sink = new Sink();
+        sink.setCharset(charset);
+        sink.setTerminator("\n");
+        return Bench.time(new Bench.Task() {
+            public long run() throws Exception {
+                for (int i = 0; i < bytes.length; i += READ_SIZE) {
+                    int length = Math.min(READ_SIZE, bytes.length - i);
+                    sink.read_lines(ByteBuffer.wrap(bytes, i, length));
+                }
+                return sink.count;
+            }
+        }, 1);
+    }
+
+    static double old_framing(final byte[] bytes, Charset charset)
+                                                            throws Exception {
+        final CharsetDecoder decoder = charset.newDecoder();
+        final StringBuffer ibuff = new StringBuffer(Asynchat.BUFFER_SIZE);
+        return Bench.time(new Bench.Task() {
+            public long run() throws Exception {
+                long count = 0;
+                for (int i = 0; i < bytes.length; i += READ_SIZE) {
+                    int length = Math.min(READ_SIZE, bytes.length - i);
+                    String str = decoder.decode(
+                            ByteBuffer.wrap(bytes, i, length)).toString();
+                    int pos = 0;
+                    while (pos < str.length()) {
+                        int index = str.indexOf("\n", pos);
+                        if (index == -1) {
+                            ibuff.append(str.substring(pos));
+                            break;
+                        }
+                        if (index > 0)
+                            ibuff.append(str.substring(pos, index));
+                        pos = index + 1;
+                        String line = ibuff.toString();
+                        ibuff.delete(0, ibuff.length());
+                        count += line.length();
+                    }
+                }
+                return count;
+            }
+        }, 1);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.text.MessageFormat;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regex based implementations that have been replaced, kept as the
+ * baselines of the benchmarks.
+ */
+class Legacy {
+    static Pattern re_event = Pattern.compile("^\\s*(\\d+):(\\S+)=(\\d+)\\s*(.*)\\s*$");
+    static Pattern re_response = Pattern.compile("^\\s*(\\d+)\\s*(.*)\\s*$");
+    static Pattern re_unescape = Pattern.compile("\\\\[\"ntr\\\\]");
+    static Pattern re_escape = Pattern.compile("[\"\\n\\t\\r\\\\]");
+
+    /** The netbeans message parser. */
+    static class Parser {
+        boolean is_event = false;
+        int buf_id = 0;
+        String event = "";
+        int  seqno = 0;
+        String nbstring = "";
+        String[] arg_list = {};
+
+        Parser(String msg) throws NetbeansException {
+            String args = "";
+            Matcher matcher = re_event.matcher(msg);
+            if(matcher.matches()) {
+                this.is_event = true;
+                this.buf_id = Integer.parseInt(matcher.group(1));
+                this.event = matcher.group(2);
+                this.seqno = Integer.parseInt(matcher.group(3));
+                args = matcher.group(4);
+            } else {
+                matcher = re_response.matcher(msg);
+                if(matcher.matches()) {
+                    this.seqno = Integer.parseInt(matcher.group(1));
+                    args = matcher.group(2);
+                }
+                else
+                    throw new NetbeansException("discarding invalid netbeans message: " + msg);
+            }
+
+            // The quoted string is last in an 'insert' event.
+            if (this.event.equals("insert")) {
+                if (args.length() == 0)
+                    throw new NetbeansException("discarding invalid netbeans message: " + msg);
+                int idx = args.indexOf(' ');
+                if (idx == -1)
+                    throw new NetbeansException("discarding invalid netbeans message: " + msg);
+                String[] list = { args.substring(0, idx) };
+                this.arg_list = list;
+                args = args.substring(idx + 1);
+            }
+
+            // a netbeans string
+            int end = -1;
+            if (args.length() != 0 && args.charAt(0) == '"') {
+                end = args.lastIndexOf("\"");
+                if (end != -1 && end != 0) {
+                    this.nbstring = args.substring(1, end);
+                    if (! (this.event.equals("keyAtPos") || this.event.equals("keyCommand"))) {
+                        this.nbstring = unquote(this.nbstring);
+                    }
+                }
+                else
+                    end = -1;
+            }
+
+            if (! this.event.equals("insert"))
+                this.arg_list = args.substring(end+1).trim().split("\\s+");
+        }
+    }
+
+    static String escape_char(char c) {
+        if (c == '"') return  "\\\"";
+        if (c == '\n') return "\\n";
+        if (c == '\t') return "\\t";
+        if (c == '\r') return "\\r";
+        if (c == '\\') return "\\\\";
+        return "";
+    }
+
+    /** Quote 'msg' and escape special characters. */
+    static String quote(String text) {
+        String result = "";
+        int i = 0;
+        Matcher matcher = re_escape.matcher(text);
+        if (matcher.find(0)) {
+            do {
+                int j = matcher.start();
+                if (j != 0)
+                    result += text.substring(i, j);
+                result += escape_char(text.charAt(j));
+                i = j + 1;
+            } while (matcher.find());
+        }
+        result += text.substring(i);
+        return "\"" + result + "\"";
+    }
+
+    static String unescape_char(String escaped) {
+        if (escaped.equals("\\\"")) return  "\"";
+        if (escaped.equals("\\n")) return "\n";
+        if (escaped.equals("\\t")) return "\t";
+        if (escaped.equals("\\r")) return "\r";
+        if (escaped.equals("\\\\")) return "\\";
+        return "";
+    }
+
+    /** Remove escapes from escaped characters in a quoted string. */
+    static String unquote(String text) {
+        String result = "";
+        int i = 0;
+        Matcher matcher = re_unescape.matcher(text);
+        if (matcher.find(0)) {
+            do {
+                int j = matcher.start();
+                if (j != 0)
+                    result += text.substring(i, j);
+                result += unescape_char(text.substring(j, j+2));
+                i = j + 2;
+            } while (matcher.find());
+        }
+        result += text.substring(i);
+        return result;
+    }
+
+    /**
+     * Serialize a request as send_request did, with the pattern
+     * "{0}:{1}!{2}{3}{4}" of a command or "{0}:{1}/{2}{3}{4}" of a function.
+     */
+    static String format_request(String fmt, int buf_id, String request,
+                                                    int seqno, String args) {
+        String space = " ";
+        if (args.equals(""))
+            space = "";
+        Object[] prm = {new Long(buf_id), request, new Long(seqno), space, args};
+        String msg = MessageFormat.format(fmt, prm);
+        return msg + '\n';
+    }
+}
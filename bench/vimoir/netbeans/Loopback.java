@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Netbeans session over the loopback interface, between a Server running
+ * its select loop in a daemon thread and a fake Vim using a blocking socket.
+ */
+class Loopback {
+    static Server server = null;
+    /** The client of the last session that has received startupDone. */
+    static volatile Client client = null;
+    Socket vim;
+    BufferedReader in;
+    OutputStream out;
+    Netbeans nbsock;
+
+    /** The client class of the sessions. */
+    public static class Client extends NetbeansClient {
+        public Client(NetbeansSocket nbsock) {
+            super(nbsock);
+        }
+
+        public void event_startupDone() {
+            Loopback.client = this;
+        }
+    }
+
+    /** Start the Server listening on an ephemeral port. */
+    static synchronized void start(Properties props) throws Exception {
+        if (server != null)
+            return;
+        Logger.getLogger("vimoir.netbeans").setLevel(Level.WARNING);
+        Config config = new Config(null, null, props, Client.class.getConstructor(
+                                    new Class[] { NetbeansSocket.class }));
+        server = new Server(config, "127.0.0.1", 0);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Dispatcher.loop();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "vimoir-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Connect a fake Vim and complete the handshake. */
+    Loopback() throws Exception {
+        start(new Properties());
+        client = null;
+        int port = server.getServerSocketChannel().socket().getLocalPort();
+        this.vim = new Socket("127.0.0.1", port);
+        this.vim.setTcpNoDelay(true);
+        this.in = new BufferedReader(new InputStreamReader(
+                                    this.vim.getInputStream(), "UTF-8"));
+        this.out = this.vim.getOutputStream();
+        this.send("AUTH changeme\n0:version=0 \"2.5\"\n0:startupDone=0\n");
+        while (client == null)
+            Thread.sleep(1);
+        this.nbsock = (Netbeans) client.nbsock;
+    }
+
+    /** Send lines from Vim. */
+    void send(String lines) throws IOException {
+        this.out.write(lines.getBytes("UTF-8"));
+        this.out.flush();
+    }
+
+    /** Read a line sent to Vim. */
+    String read_line() throws IOException {
+        return this.in.readLine();
+    }
+
+    void close() throws IOException {
+        this.vim.close();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Properties;
+
+/**
+ * The parsing of the netbeans messages, with the regex based Parser that
+ * has been replaced and with the single pass Parser, on a mix of the events
+ * sent by Vim while editing and of function replies.
+ */
+public class ParseBench {
+    static final String[] MESSAGES = {
+        "2:insert=34 1021 \"if (count > 0) {\"",
+        "2:newDotAndMark=35 1038 1038",
+        "2:insert=36 1038 \"\\tprintf(\\\"%d\\\\n\\\", count);\"",
+        "2:newDotAndMark=37 1062 1062",
+        "2:remove=38 1055 7",
+        "2:keyAtPos=39 \"C-F1\" 1062 12/5",
+        "2:balloonText=40 \"count\"",
+        "41 1062",
+        "42 \"int count = 0;\"",
+        "2:fileModified=43",
+    };
+
+    public static void main(String[] args) throws Exception {
+        final Netbeans.Parser parser = new Netbeans(null, new Properties()).parser;
+        report("regex parser", new Bench.Task() {
+            public long run() throws Exception {
+                long sum = 0;
+                for (int i = 0; i < MESSAGES.length; i++) {
+                    Legacy.Parser parsed = new Legacy.Parser(MESSAGES[i]);
+                    sum += parsed.seqno + parsed.arg_list.length;
+                }
+                return sum;
+            }
+        });
+        report("single pass parser", new Bench.Task() {
+            public long run() throws Exception {
+                long sum = 0;
+                for (int i = 0; i < MESSAGES.length; i++) {
+                    Netbeans.Parser parsed = parser.parse(MESSAGES[i]);
+                    sum += parsed.seqno + parsed.argc;
+                }
+                return sum;
+            }
+        });
+    }
+
+    static void report(String name, Bench.Task task) throws Exception {
+        double ns = Bench.time(task, 10000) / MESSAGES.length;
+        long bytes = Bench.allocated(task, 10000) / MESSAGES.length;
+        System.out.println(name + ": " + Bench.format(ns) + "/msg, "
+                                                    + bytes + " B/msg");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Properties;
+
+/**
+ * quote and unquote of texts of 10 B, 1 KB and 1 MB with a newline every 50
+ * characters and a few double quotes, with the regex based implementations
+ * that have been replaced and with the current ones.
+ *
+ * <p> The regex based implementations are quadratic in the length of the
+ * text: they are timed once on a 64 KB text and not run on the 1 MB text,
+ * where they take close to a minute.
+ */
+public class QuoteBench {
+    static final int[] SIZES = {10, 1024, 64 * 1024, 1024 * 1024};
+    static final int REGEX_MAX = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        final Netbeans nbsock = new Netbeans(null, new Properties());
+        for (int i = 0; i < SIZES.length; i++) {
+            final String text = text(SIZES[i]);
+            String quoted = nbsock.quote(text);
+            final String escaped = quoted.substring(1, quoted.length() - 1);
+            int count = Math.max(1, 100000 / SIZES[i]);
+            int once = SIZES[i] < REGEX_MAX ? 0 : SIZES[i] == REGEX_MAX ? 1 : -1;
+
+            String label = String.format("%-8s", size(SIZES[i]));
+            System.out.println(label + "quote   regex " + Bench.format(time(
+                new Bench.Task() {
+                    public long run() {
+                        return Legacy.quote(text).length();
+                    }
+                }, count, once))
+                + ", current " + Bench.format(Bench.time(new Bench.Task() {
+                    public long run() {
+                        return nbsock.quote(text).length();
+                    }
+                }, count)));
+            System.out.println(label + "unquote regex " + Bench.format(time(
+                new Bench.Task() {
+                    public long run() {
+                        return Legacy.unquote(escaped).length();
+                    }
+                }, count, once))
+                + ", current " + Bench.format(Bench.time(new Bench.Task() {
+                    public long run() {
+                        return Netbeans.unquote(escaped).length();
+                    }
+                }, count)));
+        }
+    }
+
+    /** Time task once when <code>once</code> is 1, skip it when -1. */
+    static double time(Bench.Task task, int count, int once)
+                                                            throws Exception {
+        if (once < 0)
+            return Double.NaN;
+        if (once == 0)
+            return Bench.time(task, count);
+        long start = System.nanoTime();
+        Bench.sink += task.run();
+        return System.nanoTime() - start;
+    }
+
+    static String size(int size) {
+        if (size >= 1024 * 1024)
+            return (size >> 20) + " MB";
+        if (size >= 1024)
+            return (size >> 10) + " KB";
+        return size + " B";
+    }
+
+    /** Return a text of <code>size</code> characters. */
+    static String text(int size) {
+        StringBuffer buffer = new StringBuffer(size);
+        for (int i = 0; i < size; i++) {
+            if (i % 50 == 49)
+                buffer.append('\n');
+            else if (i % 200 == 20)
+                buffer.append('"');
+            else
+                buffer.append((char) ('a' + i % 26));
+        }
+        return buffer.toString();
+    }
+}
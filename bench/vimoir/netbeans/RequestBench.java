@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+/**
+ * The serialization of the commands and functions sent to Vim, with the
+ * MessageFormat pattern that has been replaced and with append_request into
+ * a reused StringBuilder as in send_request, in time and in bytes allocated
+ * per request. The old send_request also built its FINEST log line on each
+ * request, this is not counted here.
+ */
+public class RequestBench {
+    /** The separator, bufID, name and arguments of each request. */
+    static final String[][] REQUESTS = {
+        {"!", "2", "setDot", "1038"},
+        {"!", "2", "addAnno", "1 1 1038 -1"},
+        {"/", "2", "getLength", ""},
+        {"!", "0", "showBalloon", "\"count: the number of lines\""},
+        {"/", "2", "getAnno", "1"},
+        {"!", "2", "startDocumentListen", ""},
+    };
+    static int seqno = 0;
+
+    public static void main(String[] args) throws Exception {
+        final String[] patterns = new String[REQUESTS.length];
+        final char[] separators = new char[REQUESTS.length];
+        final int[] buf_ids = new int[REQUESTS.length];
+        for (int i = 0; i < REQUESTS.length; i++) {
+            separators[i] = REQUESTS[i][0].charAt(0);
+            patterns[i] = "{0}:{1}" + REQUESTS[i][0] + "{2}{3}{4}";
+            buf_ids[i] = Integer.parseInt(REQUESTS[i][1]);
+        }
+        final StringBuilder sb = new StringBuilder(Netbeans.REQUEST_CAPACITY);
+
+        // Both serializations are the same below seqno 1000, MessageFormat
+        // writes 1000 as "1,000".
+        for (int i = 0; i < REQUESTS.length; i++) {
+            sb.setLength(0);
+            Netbeans.append_request(sb, separators[i], buf_ids[i],
+                                    REQUESTS[i][2], 999, REQUESTS[i][3]);
+            String expected = Legacy.format_request(patterns[i], buf_ids[i],
+                                    REQUESTS[i][2], 999, REQUESTS[i][3]);
+            if (! sb.toString().equals(expected))
+                throw new AssertionError(sb + " != " + expected);
+        }
+
+        report("MessageFormat", new Bench.Task() {
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REQUESTS.length; i++) {
+                    String msg = Legacy.format_request(patterns[i], buf_ids[i],
+                                    REQUESTS[i][2], ++seqno, REQUESTS[i][3]);
+                    sum += msg.length();
+                }
+                return sum;
+            }
+        });
+        report("append_request", new Bench.Task() {
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < REQUESTS.length; i++) {
+                    sb.setLength(0);
+                    Netbeans.append_request(sb, separators[i], buf_ids[i],
+                                    REQUESTS[i][2], ++seqno, REQUESTS[i][3]);
+                    sum += sb.toString().length();
+                }
+                return sum;
+            }
+        });
+    }
+
+    static void report(String name, Bench.Task task) throws Exception {
+        double ns = Bench.time(task, 10000) / REQUESTS.length;
+        long bytes = Bench.allocated(task, 10000) / REQUESTS.length;
+        System.out.println(name + ": " + Bench.format(ns) + "/request, "
+                                                    + bytes + " B/request");
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Arrays;
+
+/**
+ * The latency from a send_cmd invoked in a thread that is not the thread of
+ * the select loop, to the reception of the command by Vim.
+ *
+ * <p> The "no wakeup" case queues the command without waking up the
+ * selector, as before the wakeup on cross-thread sends: the command is then
+ * written when the select call times out, after up to
+ * vimoir.netbeans.timeout milliseconds, or on the next IO event. The select
+ * loop used to time out every 20 ms, this is emulated with a periodic timer.
+ */
+public class SendLatencyBench {
+    static final int COUNT = 200;
+
+    public static void main(String[] args) throws Exception {
+        Loopback session = new Loopback();
+        NetbeansBuffer buf = session.nbsock.get_buffer("/tmp/foo.c");
+        measure("send_cmd (wakeup)", session, buf, true);
+        final Reactor reactor = session.nbsock.reactor;
+        reactor.schedule(10, new Runnable() {
+            public void run() { reactor.schedule(10, this); }
+        });
+        measure("no wakeup, 20 ms select timeout", session, buf, false);
+        session.close();
+    }
+
+    static void measure(String name, Loopback session, NetbeansBuffer buf,
+                                        boolean wakeup) throws Exception {
+        Netbeans nbsock = session.nbsock;
+        long[] samples = new long[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            // Do not send in phase with the select timeout.
+            Thread.sleep(1 + i % 7);
+            long start = System.nanoTime();
+            if (wakeup)
+                nbsock.send_cmd(buf, "setDot", "1/0");
+            else {
+                nbsock.output_queue.add("1:setDot!0 1/0\n");
+                nbsock.queued.addAndGet(15);
+            }
+            session.read_line();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        System.out.println(name + ": median " + Bench.format(Bench.percentile(samples, 50))
+                + ", p90 " + Bench.format(Bench.percentile(samples, 90))
+                + ", max " + Bench.format(samples[COUNT - 1]));
+    }
+}
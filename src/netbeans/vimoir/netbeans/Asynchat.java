@@ -23,8 +23,10 @@ import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.CharacterCodingException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class supporting chat-style (command/response) protocols.
@@ -32,21 +34,89 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * This is an abstract class. You must derive from this class, and implement
  * the two methods collect_incoming_data and found_terminator.
  *
+ * The terminator is searched for in the bytes read from the channel, before
+ * any decoding. The bytes of an incomplete line are kept in a growable
+ * accumulator until the terminator is received, and each complete line is
+ * decoded once and passed to collect_incoming_data before the invocation of
+ * found_terminator. So a multi-byte character split across two reads is
+ * decoded correctly.
+ *
+ * The queued output strings are encoded into segments acquired from the
+ * BufferPool and the filled segments are written with a single gathering
+ * write. A string larger than a segment spans several segments, and the
+ * encoding of a very large string is resumed after each write so that at
+ * most MAX_SEGMENTS segments are in use by a connection.
+ *
+ * The strings are encoded without allocating any object: when the charset is
+ * ASCII compatible, the leading ASCII characters of a string are copied as
+ * bytes, and the remaining characters are copied by chunks into a reusable
+ * CharBuffer that is encoded directly into the segments.
+ *
+ * An idle connection holds little memory: the read buffer and the scratch
+ * buffers are shared by the channels of the Reactor, and the accumulator of
+ * the incomplete lines and the CharBuffer of the encoder are allocated on
+ * their first use.
+ *
+ * The size of the output queue is bounded by watermarks. The channel becomes
+ * not writable when the number of characters of the queued strings rises
+ * above the high watermark, and writable again when it falls below the low
+ * watermark. A string is counted when it is queued and discounted when it
+ * is taken from the queue to be encoded: the encoded bytes waiting in the
+ * output segments are not counted. The
+ * send policy defines what happens on a send while the channel is not
+ * writable: the string is queued anyway (SEND_QUEUE), the sender is blocked
+ * until the channel becomes writable (SEND_BLOCK), or send throws an
+ * IllegalStateException (SEND_FAIL).
+ *
  */
 abstract class Asynchat extends Dispatcher {
     static final int BUFFER_SIZE = 4096;
+    static final int MAX_SEGMENTS = 16;
+    static final int SEND_QUEUE = 0;
+    static final int SEND_BLOCK = 1;
+    static final int SEND_FAIL = 2;
     static Charset charset = Charset.forName("US-ASCII");
-    static CharsetEncoder encoder = charset.newEncoder();
-    static CharsetDecoder decoder = charset.newDecoder();
+    CharsetEncoder encoder = charset.newEncoder();
+    CharsetDecoder decoder = charset.newDecoder();
+    /** True when the charset encodes ASCII characters as single bytes. */
+    boolean ascii = true;
     ConcurrentLinkedQueue output_queue = new ConcurrentLinkedQueue();
+    /** The number of characters of the strings in the output queue. */
+    AtomicLong queued = new AtomicLong();
+    long low_watermark = 256 * 1024;
+    long high_watermark = 1024 * 1024;
+    int send_policy = SEND_QUEUE;
+    volatile boolean writable = true;
+    Object watermark_lock = new Object();
     String terminator = null;
-    ByteBuffer outbuf;
-    ByteBuffer inbuf;
+    /** The output segments, in read mode, waiting to be written. */
+    ByteBuffer[] segments = new ByteBuffer[MAX_SEGMENTS];
+    int nsegments = 0;
+    /** False when the last segment cannot hold the next encoded bytes. */
+    boolean tail_open = false;
+    /** The output string being encoded. */
+    String message = null;
+    /** The index of the next character of message to encode. */
+    int offset = 0;
+    /** True when message is encoded with the encoder. */
+    boolean encoding = false;
+    /** The characters of message, in read mode, waiting to be encoded. */
+    CharBuffer outchars = null;
     int termlen = 0;
+    byte termbyte = 0;
+    /** The bytes of the incomplete line. */
+    byte[] accumulator = null;
+    ByteBuffer accbuf = null;
+    int acclen = 0;
+    /**
+     * The protocol counters, null when they are not published. They are
+     * only allocated for a published connection to keep an idle connection
+     * small.
+     */
+    Metrics metrics = null;
 
     Asynchat() throws IOException {
         super();
-        this.initAsynchat();
     }
 
     /**
@@ -56,23 +126,102 @@ abstract class Asynchat extends Dispatcher {
      */
     Asynchat(Selector selector) throws IOException {
         super(selector);
-        this.initAsynchat();
     }
 
-    void initAsynchat() {
-        this.outbuf = ByteBuffer.allocate(BUFFER_SIZE);
-        this.outbuf.flip();
-        this.inbuf = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Set the charset of the channel.
+     *
+     * @param charset the charset
+     */
+    void setCharset(Charset charset) {
+        this.encoder = charset.newEncoder();
+        this.decoder = charset.newDecoder();
+        this.ascii = false;
+        try {
+            byte[] bytes = new byte[0x80];
+            char[] chars = new char[0x80];
+            for (int i = 0; i < 0x80; i++) {
+                bytes[i] = (byte) i;
+                chars[i] = (char) i;
+            }
+            ByteBuffer encoded = this.encoder.encode(CharBuffer.wrap(chars));
+            this.ascii = encoded.equals(ByteBuffer.wrap(bytes));
+        } catch (CharacterCodingException e) { /* not ASCII compatible */ }
+        this.encoder.reset();
+    }
+
+    /**
+     * Set the output queue watermarks and the send policy.
+     *
+     * @param low       the low watermark in characters
+     * @param high      the high watermark in characters
+     * @param policy    SEND_QUEUE, SEND_BLOCK or SEND_FAIL
+     */
+    void setWatermarks(long low, long high, int policy) {
+        assert low <= high : "low watermark above high watermark";
+        this.low_watermark = low;
+        this.high_watermark = high;
+        this.send_policy = policy;
+    }
+
+    /**
+     * Set the writable state after the output queue has crossed a
+     * watermark, and notify the change.
+     */
+    void setWritable(boolean writable) {
+        synchronized (this.watermark_lock) {
+            if (this.writable == writable)
+                return;
+            long size = this.queued.get();
+            if ((writable && size > this.low_watermark)
+                    || (! writable && size <= this.high_watermark))
+                return;
+            this.writable = writable;
+            this.watermark_lock.notifyAll();
+        }
+        this.writability_changed(writable);
+    }
+
+    /**
+     * This method is invoked when the channel becomes writable or not
+     * writable. It may be invoked from any thread that sends or writes data.
+     *
+     * @param writable  the new writable state
+     */
+    void writability_changed(boolean writable) {}
+
+    /** Apply the send policy when the channel is not writable. */
+    void apply_send_policy() {
+        if (this.send_policy == SEND_FAIL)
+            throw new IllegalStateException(
+                    "output queue above the high watermark: " + this.toString());
+        // Never block the select loop.
+        if (this.send_policy != SEND_BLOCK
+                    || Thread.currentThread() == this.reactor.thread)
+            return;
+        synchronized (this.watermark_lock) {
+            while (! this.writable && ! this.state.closed()) {
+                try {
+                    this.watermark_lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 
     /**
      * Set the terminator.
      *
-     * @param terminator the terminator
+     * @param terminator the terminator, a single ASCII character
      */
     void setTerminator(String terminator) {
+        assert terminator.length() == 1 && terminator.charAt(0) < 0x80
+                                : "the terminator must be an ASCII character";
         this.terminator = terminator;
         this.termlen = terminator.length();
+        this.termbyte = (byte) terminator.charAt(0);
     }
 
     /**
@@ -89,92 +238,341 @@ abstract class Asynchat extends Dispatcher {
      */
     abstract void found_terminator() throws NetbeansException;
 
+    /**
+     * This method is invoked after all the lines received by a read on the
+     * channel have been processed.
+     */
+    void read_complete() {}
+
     boolean readyToWrite() {
         return (this.state.writable()
-                && (this.output_queue.size() != 0 || this.outbuf.remaining() != 0));
+                && (! this.output_queue.isEmpty()
+                    || this.nsegments != 0 || this.message != null));
     }
 
     void initiate_send() throws IOException {
-        String str = null;
-        while ((str = (String) this.output_queue.peek()) != null
-                && this.refill_buffer(str))
-            output_queue.poll();
-        super.send(this.outbuf);
-    }
-
-    /** Refill the output buffer.  */
-    boolean refill_buffer(String str) {
-        int len = str.length();
-        if (len == 0) return true;
-        if (len > BUFFER_SIZE - this.outbuf.remaining())
-            return false;
-        if (len > BUFFER_SIZE - this.outbuf.limit())
-            this.outbuf.compact().flip();
-
-        this.outbuf.mark().position(this.outbuf.limit()).limit(BUFFER_SIZE);
-        try {
-            this.outbuf.put(this.encoder.encode(CharBuffer.wrap(str)));
-        } catch (CharacterCodingException e) {
-            handle_error(e);
-            System.exit(1);
+        this.refill_buffers();
+        if (this.nsegments != 0) {
+            long count = super.send(this.segments, this.nsegments);
+            if (this.metrics != null)
+                this.metrics.bytes_out.add(count);
+            this.release_buffers(false);
+        }
+        // Stop polling for write events once the output has been drained.
+        this.updateInterestOps();
+    }
+
+    /**
+     * Encode the queued strings into the output segments, until the queue is
+     * empty or MAX_SEGMENTS segments are filled.
+     */
+    void refill_buffers() throws CharacterCodingException {
+        while (true) {
+            if (this.message == null) {
+                String str = (String) this.output_queue.poll();
+                if (str == null)
+                    return;
+                long size = this.queued.addAndGet(- str.length());
+                if (! this.writable && size <= this.low_watermark)
+                    this.setWritable(true);
+                if (str.length() == 0)
+                    continue;
+                this.message = str;
+                this.offset = 0;
+                this.encoding = ! this.ascii;
+                this.encoder.reset();
+                if (this.outchars != null)
+                    this.outchars.clear().limit(0);
+            }
+
+            ByteBuffer tail = null;
+            if (this.nsegments != 0)
+                tail = this.segments[this.nsegments - 1];
+            if (tail == null || ! this.tail_open
+                                || tail.limit() == tail.capacity()) {
+                if (this.nsegments == MAX_SEGMENTS)
+                    return;
+                tail = BufferPool.acquire();
+                tail.limit(0);
+                this.segments[this.nsegments++] = tail;
+                this.tail_open = true;
+            }
+
+            // Append to the tail segment.
+            int position = tail.position();
+            tail.position(tail.limit()).limit(tail.capacity());
+            boolean done = false;
+            try {
+                if (this.encoding)
+                    done = this.encode_chars(tail);
+                else
+                    done = this.encode_ascii(tail);
+            } finally {
+                tail.limit(tail.position()).position(position);
+            }
+            if (done)
+                this.message = null;
+        }
+    }
+
+    /**
+     * Copy the leading ASCII characters of message to <code>out</code>.
+     *
+     * @return true when the whole message has been copied
+     */
+    boolean encode_ascii(ByteBuffer out) {
+        String str = this.message;
+        int count = Math.min(out.remaining(), str.length() - this.offset);
+        byte[] bytes = this.reactor.scratch;
+        int i = 0;
+        for (; i < count; i++) {
+            char c = str.charAt(this.offset + i);
+            if (c >= 0x80) {
+                // Encode the remaining characters with the encoder.
+                this.encoding = true;
+                break;
+            }
+            bytes[i] = (byte) c;
         }
-        this.outbuf.limit(this.outbuf.position()).reset();
-        return true;
+        out.put(bytes, 0, i);
+        this.offset += i;
+        if (! out.hasRemaining())
+            this.tail_open = false;
+        return this.offset == str.length();
+    }
+
+    /**
+     * Encode the characters of message to <code>out</code>.
+     *
+     * @return true when the whole message has been encoded
+     */
+    boolean encode_chars(ByteBuffer out) throws CharacterCodingException {
+        String str = this.message;
+        CharBuffer in = this.outchars;
+        if (in == null) {
+            in = this.outchars = CharBuffer.allocate(BUFFER_SIZE);
+            in.limit(0);
+        }
+        while (true) {
+            if (this.offset < str.length()) {
+                in.compact();
+                int count = Math.min(in.remaining(), str.length() - this.offset);
+                str.getChars(this.offset, this.offset + count,
+                                    in.array(), in.arrayOffset() + in.position());
+                in.position(in.position() + count);
+                in.flip();
+                this.offset += count;
+            }
+            boolean end = (this.offset == str.length());
+            CoderResult result = this.encoder.encode(in, out, end);
+            if (result.isError())
+                result.throwException();
+            if (result.isOverflow()) {
+                this.tail_open = false;
+                return false;
+            }
+            if (end) {
+                result = this.encoder.flush(out);
+                if (result.isOverflow())
+                    this.tail_open = false;
+                return result.isUnderflow();
+            }
+        }
+    }
+
+    /**
+     * Release the output segments that have been written.
+     *
+     * @param all   release all the segments and discard the output
+     */
+    void release_buffers(boolean all) {
+        int count = 0;
+        while (count < this.nsegments
+                && (all || ! this.segments[count].hasRemaining())) {
+            BufferPool.release(this.segments[count]);
+            count++;
+        }
+        if (count == 0)
+            return;
+        int left = this.nsegments - count;
+        System.arraycopy(this.segments, count, this.segments, 0, left);
+        for (int i = left; i < this.nsegments; i++)
+            this.segments[i] = null;
+        this.nsegments = left;
+    }
+
+    /** Close the channel and release its output segments. */
+    public void close() {
+        super.close();
+        // Release the senders blocked by the send policy.
+        synchronized (this.watermark_lock) {
+            this.watermark_lock.notifyAll();
+        }
+        final Asynchat chat = this;
+        this.reactor.execute(new Runnable() {
+            public void run() {
+                chat.message = null;
+                chat.release_buffers(true);
+            }
+        });
     }
 
     void send(String str) {
+        if (! this.writable)
+            this.apply_send_policy();
+        this.enqueue(str);
+    }
+
+    /** Queue <code>str</code> without applying the send policy. */
+    void enqueue(String str) {
         this.output_queue.add(str);
+        long size = this.queued.addAndGet(str.length());
+        if (this.writable && size > this.high_watermark)
+            this.setWritable(false);
+        this.updateInterestOps();
+        // Do not wait for the select timeout when invoked from another thread.
+        this.reactor.wakeup();
     }
 
-    String recv() {
+    void handle_write() {
         try {
-            super.recv(this.inbuf);
-            this.inbuf.flip();
-            String str =  this.decoder.decode(this.inbuf).toString();
-            this.inbuf.clear();
-            return str;
+            this.initiate_send();
         } catch (IOException e) {
-            logger.severe(e.toString());
-            this.handle_close();
-            return "";
+            handle_error(e);
         }
     }
+    /** Append <code>length</code> bytes to the accumulator. */
+    void accumulate(byte[] bytes, int offset, int length) {
+        if (this.accumulator == null) {
+            this.accumulator = new byte[Math.max(BUFFER_SIZE, length)];
+            this.accbuf = ByteBuffer.wrap(this.accumulator);
+        }
+        if (this.acclen + length > this.accumulator.length) {
+            int size = this.accumulator.length * 2;
+            while (size < this.acclen + length)
+                size *= 2;
+            byte[] tmp = new byte[size];
+            System.arraycopy(this.accumulator, 0, tmp, 0, this.acclen);
+            this.accumulator = tmp;
+            this.accbuf = ByteBuffer.wrap(tmp);
+        }
+        System.arraycopy(bytes, offset, this.accumulator, this.acclen, length);
+        this.acclen += length;
+    }
 
-    void handle_write() {
+    /**
+     * Decode the bytes between the position and the limit of
+     * <code>in</code>.
+     *
+     * @param in            the bytes to decode
+     * @param endOfInput    false when the bytes left undecoded in
+     *                      <code>in</code> may be completed by a next read
+     */
+    String decode(ByteBuffer in, boolean endOfInput)
+                                    throws CharacterCodingException {
+        int size = (int) (in.remaining() * this.decoder.maxCharsPerByte()) + 1;
+        CharBuffer chars = this.reactor.chars;
+        if (chars.capacity() < size)
+            chars = CharBuffer.allocate(size);
+        // Do not keep in the Reactor the memory used by a large paste.
+        if (size <= 16 * BUFFER_SIZE)
+            this.reactor.chars = chars;
+        chars.clear();
+        this.decoder.reset();
+        CoderResult result = this.decoder.decode(in, chars, endOfInput);
+        if (result.isError())
+            result.throwException();
+        if (endOfInput) {
+            result = this.decoder.flush(chars);
+            if (result.isError())
+                result.throwException();
+        }
+        chars.flip();
+        return chars.toString();
+    }
+
+    /** Process a line terminated by the terminator. */
+    void found_line(String line) {
+        // Don't report an empty string.
+        if (line.length() != 0)
+            this.collect_incoming_data(line);
         try {
-            this.initiate_send();
-        } catch (IOException e) {
+            this.found_terminator();
+        } catch (NetbeansException e) {
             handle_error(e);
+            System.exit(1);
         }
     }
+
     void handle_read() {
-        String str = this.recv();
-        if (str == null || str.length() == 0)
-            return;
-        if (this.terminator == null) {
-            this.collect_incoming_data(str);
-            return;
+        ByteBuffer in = this.reactor.inbuf;
+        try {
+            int count = super.recv(in);
+            if (count == 0) {
+                in.clear();
+                return;
+            }
+            if (this.metrics != null)
+                this.metrics.bytes_in.add(count);
+            in.flip();
+            if (this.terminator == null)
+                this.read_data(in);
+            else {
+                this.read_lines(in);
+                this.read_complete();
+            }
+        } catch (IOException e) {
+            logger.severe(e.toString());
+            this.handle_close();
         }
+        in.clear();
+    }
 
-        int pos = 0;
-        int len = str.length();
-        while (pos < len) {
-            int index = str.indexOf(this.terminator, pos);
-            if (index == -1) {
-                this.collect_incoming_data(str.substring(pos));
-                break;
+    /** Split the bytes read in <code>in</code> into lines. */
+    void read_lines(ByteBuffer in) throws CharacterCodingException {
+        byte[] bytes = in.array();
+        int base = in.arrayOffset();
+        int start = base + in.position();
+        int limit = base + in.limit();
+        byte term = this.termbyte;
+        for (int i = start; i < limit; i++) {
+            if (bytes[i] != term)
+                continue;
+            String line = null;
+            if (this.acclen == 0) {
+                in.limit(i - base).position(start - base);
+                line = this.decode(in, true);
+                in.limit(limit - base);
             } else {
-                // Don't report an empty string.
-                if (index > 0)
-                    this.collect_incoming_data(str.substring(pos, index));
-                pos = index + this.termlen;
-                try {
-                    this.found_terminator();
-                } catch (NetbeansException e) {
-                    handle_error(e);
-                    System.exit(1);
+                this.accumulate(bytes, start, i - start);
+                this.accbuf.limit(this.acclen).position(0);
+                line = this.decode(this.accbuf, true);
+                this.acclen = 0;
+                // Release the memory used by a large paste.
+                if (this.accumulator.length > 16 * BUFFER_SIZE) {
+                    this.accumulator = null;
+                    this.accbuf = null;
                 }
             }
+            start = i + 1;
+            this.found_line(line);
         }
+        if (start < limit)
+            this.accumulate(bytes, start, limit - start);
+    }
+
+    /** Decode the bytes read in <code>in</code> when there is no terminator. */
+    void read_data(ByteBuffer in) throws CharacterCodingException {
+        this.accumulate(in.array(), in.arrayOffset() + in.position(),
+                                                        in.remaining());
+        this.accbuf.limit(this.acclen).position(0);
+        String str = this.decode(this.accbuf, false);
+        // Keep the bytes of an incomplete character.
+        int remaining = this.accbuf.remaining();
+        System.arraycopy(this.accumulator, this.accbuf.position(),
+                                        this.accumulator, 0, remaining);
+        this.acclen = remaining;
+        if (str.length() != 0)
+            this.collect_incoming_data(str);
     }
 }
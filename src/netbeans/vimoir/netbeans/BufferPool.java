@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffer segments shared by all the connections.
+ *
+ * A connection acquires segments while it has output to write and releases
+ * them as soon as they have been written, so that an idle connection does not
+ * hold any output buffer. At most MAX_FREE segments are kept in the pool.
+ */
+class BufferPool {
+    static final int SEGMENT_SIZE = 4096;
+    static final int MAX_FREE = 256;
+    static ConcurrentLinkedQueue<ByteBuffer> free =
+                                    new ConcurrentLinkedQueue<ByteBuffer>();
+    static AtomicInteger free_count = new AtomicInteger();
+
+    /** Return an empty segment. This method may be invoked from any thread. */
+    static ByteBuffer acquire() {
+        ByteBuffer segment = free.poll();
+        if (segment == null)
+            return ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        free_count.decrementAndGet();
+        segment.clear();
+        return segment;
+    }
+
+    /**
+     * Return a segment to the pool. The segment must not be used anymore
+     * after this call.
+     */
+    static void release(ByteBuffer segment) {
+        if (free_count.get() >= MAX_FREE)
+            return;
+        free_count.incrementAndGet();
+        free.add(segment);
+    }
+}
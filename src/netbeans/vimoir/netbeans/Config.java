@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.net.URL;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Enumeration;
+import java.lang.reflect.Constructor;
+
+/**
+ * The configuration of the new sessions: the vimoir.properties properties
+ * and the constructor of the client class.
+ *
+ * A Config is loaded once and never modified. When the properties file is
+ * reloaded, the Server replaces its Config with a new one, so that a new
+ * session gets either the old or the new configuration and the running
+ * sessions keep the one they were started with.
+ *
+ * Several servers may be defined in the properties file, each one listening
+ * on its own port with its own client class. The <code>servers</code>
+ * property lists their names, and the properties of a server named NAME are
+ * the <code>vimoir.netbeans.*</code> properties overridden by the
+ * <code>vimoir.netbeans.server.NAME.*</code> properties. For example:
+ * <pre>
+ *      vimoir.netbeans.servers = speech, linter
+ *      vimoir.netbeans.server.speech.port = 3219
+ *      vimoir.netbeans.server.speech.java.client = vimoir.examples.Phonemic
+ *      vimoir.netbeans.server.linter.port = 3220
+ *      vimoir.netbeans.server.linter.java.client = org.example.Linter
+ * </pre>
+ */
+class Config {
+    static final String FILENAME = "vimoir.properties";
+    static final String PREFIX = "vimoir.netbeans.";
+    /** The properties file, null when not found in the classpath. */
+    final URL url;
+    /** The server name, null when there is a single server. */
+    final String name;
+    final Properties props;
+    final Constructor<?> constructor;
+
+    Config(URL url, String name, Properties props, Constructor<?> constructor) {
+        this.url = url;
+        this.name = name;
+        this.props = props;
+        this.constructor = constructor;
+    }
+
+    /** Return the server names, an empty array when there is one server. */
+    String[] servers() {
+        String value = this.props.getProperty(PREFIX + "servers", "").trim();
+        if (value.length() == 0)
+            return new String[0];
+        return value.split("\\s*,\\s*");
+    }
+
+    /** Return the URL of the properties file in the classpath. */
+    static URL find() {
+        return ClassLoader.getSystemResource(FILENAME);
+    }
+
+    /**
+     * Load the properties file and resolve the constructor of the client
+     * class.
+     *
+     * @param url   the properties file, null for the default properties
+     */
+    static Config load(URL url) throws IOException, ClassNotFoundException,
+                                                    NoSuchMethodException {
+        return load(url, null);
+    }
+
+    /**
+     * Load the properties of a server and resolve the constructor of its
+     * client class.
+     *
+     * @param url   the properties file, null for the default properties
+     * @param name  the server name, null when there is a single server
+     */
+    static Config load(URL url, String name) throws IOException,
+                                ClassNotFoundException, NoSuchMethodException {
+        Properties props = new Properties();
+        if (url != null) {
+            InputStream f = url.openStream();
+            try {
+                props.load(f);
+            } finally {
+                f.close();
+            }
+        }
+        if (name != null) {
+            String prefix = PREFIX + "server." + name + ".";
+            Properties base = props;
+            props = new Properties();
+            props.putAll(base);
+            Enumeration<?> keys = base.propertyNames();
+            while (keys.hasMoreElements()) {
+                String key = (String) keys.nextElement();
+                if (key.startsWith(prefix))
+                    props.setProperty(PREFIX + key.substring(prefix.length()),
+                                                    base.getProperty(key));
+            }
+        }
+        String client = props.getProperty("vimoir.netbeans.java.client",
+                                                    "vimoir.examples.Phonemic");
+        Class<?> clazz = Class.forName(client);
+        Class<?>[] types = { vimoir.netbeans.NetbeansSocket.class };
+        return new Config(url, name, props, clazz.getConstructor(types));
+    }
+
+    /** Instantiate the client of a new session. */
+    NetbeansEventHandler new_client(NetbeansSocket nbsock) throws Exception {
+        Object[] params = { nbsock };
+        return (NetbeansEventHandler) this.constructor.newInstance(params);
+    }
+}
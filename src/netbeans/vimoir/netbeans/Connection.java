@@ -29,9 +29,8 @@ import java.nio.channels.SocketChannel;
  *
  */
 abstract class Connection extends Asynchat {
-    static final int BUFFER_SIZE = 1024;
     SocketAddress remote = null;
-    StringBuffer ibuff = new StringBuffer(BUFFER_SIZE);
+    String ibuff = null;
 
     Connection() throws IOException {
         super();
@@ -74,20 +73,27 @@ abstract class Connection extends Asynchat {
             this.setChannel(channel);
         } catch (IOException e) {
             logger.severe(e.toString());
+            // The connection is not connected, close the channel here.
+            this.delChannel();
+            try {
+                channel.close();
+            } catch (IOException ignored) { /* ignore */ }
             this.handle_close();
             return;
         }
         this.remote = channel.socket().getRemoteSocketAddress();
         this.state.connected();
+        this.updateInterestOps();
     }
 
     /**
      * @return the content of the input buffer and clear its content.
      */
     String getBuff() {
-        String str = this.ibuff.toString();
-        int len = this.ibuff.length();
-        this.ibuff.delete(0, len);
+        String str = this.ibuff;
+        this.ibuff = null;
+        if (str == null)
+            return "";
         return str;
     }
 
@@ -104,8 +110,15 @@ abstract class Connection extends Asynchat {
         super.handle_close();
     }
 
+    /**
+     * With a terminator, collect_incoming_data is invoked at most once per
+     * line and the line is kept as is.
+     */
     void collect_incoming_data(String str) {
-        this.ibuff.append(str);
+        if (this.ibuff == null)
+            this.ibuff = str;
+        else
+            this.ibuff += str;
     }
 
     public String toString() {
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Map;
+
+/**
+ * The management interface of a Netbeans connection.
+ *
+ * The counters are cumulative since the connection has been accepted.
+ */
+public interface ConnectionMXBean {
+    /** Return the remote address of the connection. */
+    String getRemoteAddress();
+
+    /** Return true when the startupDone event has been received. */
+    boolean isReady();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /** Return the number of netbeans messages received. */
+    long getMessagesIn();
+
+    /** Return the number of commands and function calls sent. */
+    long getMessagesOut();
+
+    /** Return the number of events received by event name. */
+    Map<String, Long> getEvents();
+
+    /** Return the number of commands and function calls by name. */
+    Map<String, Long> getCommands();
+
+    /** Return the number of characters waiting in the output queue. */
+    long getOutputQueueSize();
+
+    /** Return the number of function calls waiting for their reply. */
+    int getPendingCalls();
+
+    /** Return the number of buffers of the BufferSet. */
+    int getBuffers();
+}
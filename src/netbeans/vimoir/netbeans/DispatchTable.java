@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The method handles of the Netbeans event methods and of the commands of a
+ * client class.
+ *
+ * The event table maps a Netbeans event name to the handle of the
+ * corresponding <code>evt_</code> method of the Netbeans class. A
+ * DispatchTable maps a command name to the handle of the corresponding
+ * <code>cmd_</code> method declared by a client class. The tables are built
+ * once and are not modified afterwards, so that the dispatch of an event or
+ * of a command is a single hash lookup.
+ */
+class DispatchTable {
+    static Logger logger = Logger.getLogger("vimoir.netbeans");
+    static MethodHandles.Lookup lookup = MethodHandles.lookup();
+    static MethodType event_type = MethodType.methodType(
+                        void.class, Netbeans.class, Netbeans.Parser.class);
+    static MethodType cmd_type = MethodType.methodType(void.class,
+            NetbeansEventHandler.class, NetbeansBuffer.class, String.class);
+    static Map<String, MethodHandle> events = build_events();
+    static HashMap<Class<?>, DispatchTable> tables =
+                                    new HashMap<Class<?>, DispatchTable>();
+    Map<String, MethodHandle> commands;
+
+    DispatchTable(Class<?> clazz) {
+        HashMap<String, MethodHandle> commands = new HashMap<String, MethodHandle>();
+        Method[] methods = clazz.getDeclaredMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            Class<?>[] types = method.getParameterTypes();
+            if (! method.getName().startsWith("cmd_")
+                    || types.length != 2
+                    || types[0] != NetbeansBuffer.class
+                    || types[1] != String.class)
+                continue;
+            MethodHandle handle = unreflect(method);
+            if (handle != null)
+                commands.put(method.getName().substring(4),
+                                            handle.asType(cmd_type));
+        }
+        this.commands = Collections.unmodifiableMap(commands);
+    }
+
+    /** Return the DispatchTable of a client class, build it when not found. */
+    static synchronized DispatchTable get(Class<?> clazz) {
+        DispatchTable table = tables.get(clazz);
+        if (table == null) {
+            table = new DispatchTable(clazz);
+            tables.put(clazz, table);
+        }
+        return table;
+    }
+
+    static Map<String, MethodHandle> build_events() {
+        HashMap<String, MethodHandle> events = new HashMap<String, MethodHandle>();
+        Method[] methods = Netbeans.class.getDeclaredMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            Class<?>[] types = method.getParameterTypes();
+            if (! method.getName().startsWith("evt_")
+                    || types.length != 1
+                    || types[0] != Netbeans.Parser.class)
+                continue;
+            MethodHandle handle = unreflect(method);
+            if (handle != null)
+                events.put(method.getName().substring(4),
+                                            handle.asType(event_type));
+        }
+        return Collections.unmodifiableMap(events);
+    }
+
+    static MethodHandle unreflect(Method method) {
+        try {
+            method.setAccessible(true);
+            return lookup.unreflect(method);
+        } catch (Exception e) {
+            logger.severe("cannot access " + method + ": " + e.toString());
+            return null;
+        }
+    }
+
+    /** Return the handle of an event method, null when not found. */
+    static MethodHandle event(String name) {
+        return events.get(name);
+    }
+
+    /** Return the handle of a command method, null when not found. */
+    MethodHandle command(String name) {
+        return this.commands.get(name);
+    }
+}
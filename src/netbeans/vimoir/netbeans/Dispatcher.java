@@ -16,8 +16,6 @@
 
 package vimoir.netbeans;
 
-import java.util.Date;
-import java.util.Iterator;
 import java.util.logging.Logger;
 import java.net.ServerSocket;
 import java.net.InetSocketAddress;
@@ -39,16 +37,25 @@ import java.nio.channels.ClosedChannelException;
  *
  * Registering a channel to a Selector is done by invoking  the createSocket
  * method, or by using a constructor that takes a SocketChannel as parameter.
- * The class default_selector is used as the Selector by default.
+ * The class default_selector is used as the Selector by default. Each
+ * Selector is associated with a Reactor that runs its select loop.
  *
  * Each channel gets IO events through the handle_read, handle_write,
  * handle_accept and handle_connect methods. Note that all events are not always
  * meaningful depending on the socket type, for example outgoing connections
  * never receive handle_accept events.
  *
- * All channels receive timer events through the handle_tick method, and it is
- * possible to instantiate a channel that receives only timer events by
- * subclassing the Timer class.
+ * A channel that invokes startTicks receives periodic timer events through the
+ * handle_tick method, and it is possible to instantiate a Dispatcher that
+ * receives only timer events by subclassing the Timer class. The schedule
+ * method runs a one-shot task in the thread of the channel Reactor.
+ *
+ * The interest set of a SelectionKey is computed from the 'readyTo' methods.
+ * By default the loop rebuilds the interest set of all the registered keys
+ * before each select. When event_driven is set, the loop does not scan the
+ * keys anymore and each Dispatcher updates its own interest set with
+ * updateInterestOps whenever its state or its output changes, so that the
+ * cost of a loop iteration depends only on the channels that are active.
  *
  * As a workaround against a bug that occurs with java.nio on linux, a
  * Dispatcher instance should always have at least one of its 'readyTo' methods
@@ -58,11 +65,14 @@ import java.nio.channels.ClosedChannelException;
 abstract class Dispatcher {
     static Logger logger = Logger.getLogger("vimoir.netbeans");
     static Selector default_selector = null;
+    static boolean event_driven = false;
 
     Selector selector;
+    Reactor reactor;
     ConnectionState state;
     SelectableChannel channel;
     InetSocketAddress address;
+    TimerWheel.Timeout tick_timeout = null;
 
     Dispatcher() throws IOException {
         this.initDispatcher(null, null);
@@ -77,6 +87,7 @@ abstract class Dispatcher {
         this.initDispatcher(null, channel);
         this.setChannel(channel);
         this.state.connected();
+        this.updateInterestOps();
     }
 
     /**
@@ -91,6 +102,7 @@ abstract class Dispatcher {
         this.initDispatcher(selector, channel);
         this.setChannel(channel);
         this.state.connected();
+        this.updateInterestOps();
     }
 
     void initDispatcher(Selector selector, SelectableChannel channel)
@@ -100,12 +112,23 @@ abstract class Dispatcher {
                 default_selector = Selector.open();
             selector = default_selector;
         }
-        this.selector = selector;
+        this.setReactor(Reactor.get(selector));
         this.state = new ConnectionState();
         this.channel = channel;
         this.address = null;
     }
 
+    /**
+     * Set the Reactor, and its Selector, used by this channel. This must be
+     * done before the channel is registered.
+     *
+     * @param reactor   Reactor used for this channel
+     */
+    void setReactor(Reactor reactor) {
+        this.reactor = reactor;
+        this.selector = reactor.selector;
+    }
+
     /**
      * This method is invoked whenever readyToRead() is true, and there is data
      * ready to be read from the channel.
@@ -140,7 +163,8 @@ abstract class Dispatcher {
     abstract void handle_connect();
 
     /**
-     * This method is invoked at each timer event.
+     * This method is invoked at each timer event, after startTicks has been
+     * invoked.
      */
     abstract void handle_tick();
 
@@ -164,6 +188,40 @@ abstract class Dispatcher {
     boolean readyToAccept() { return this.state.acceptable(); }
     boolean readyToConnect() { return this.state.connectable(); }
 
+    /* Return the interest set computed from the 'readyTo' methods. */
+    int interestOps() {
+        int ops = 0;
+        if (this.readyToRead())
+            ops |= SelectionKey.OP_READ;
+        if (this.readyToWrite())
+            ops |= SelectionKey.OP_WRITE;
+        if (this.readyToAccept())
+            ops |= SelectionKey.OP_ACCEPT;
+        if (this.readyToConnect())
+            ops |= SelectionKey.OP_CONNECT;
+        return ops;
+    }
+
+    /**
+     * Update the interest set of the channel SelectionKey.
+     *
+     * <p> This method must be invoked after any change that modifies the
+     * value returned by one of the 'readyTo' methods. It may be invoked from
+     * any thread.
+     */
+    synchronized void updateInterestOps() {
+        if (this.channel == null)
+            return;
+        SelectionKey key = this.channel.keyFor(this.selector);
+        if (key == null || ! key.isValid())
+            return;
+        int ops = this.interestOps();
+        try {
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        } catch (java.nio.channels.CancelledKeyException e) { /* closed */ }
+    }
+
     /* Return the associated SocketChannel instance. */
     SocketChannel getSocketChannel() {
         assert this.channel != null :  "null channel";
@@ -196,13 +254,17 @@ abstract class Dispatcher {
         assert this.channel != null :  "null channel";
         logger.info("addChannel" + this.toString());
         this.channel.register(this.selector, 0, this);
+        this.reactor.channels.incrementAndGet();
     }
 
     void delChannel() {
         if (this.channel != null) {
             SelectionKey key = this.channel.keyFor(this.selector);
-            if (key != null)
+            if (key != null) {
                 key.cancel();
+                this.reactor.channels.decrementAndGet();
+                this.reactor.keyCancelled();
+            }
             this.channel = null;
         }
     }
@@ -254,7 +316,10 @@ abstract class Dispatcher {
     /**
      *  Listen for connections made to the socket.
      */
-    void listen() { this.state.accepting(); }
+    void listen() {
+        this.state.accepting();
+        this.updateInterestOps();
+    }
 
     /**
      * Bind the socket to host, port.
@@ -279,6 +344,7 @@ abstract class Dispatcher {
      */
     void connect(String host, int port) throws IOException {
         this.state.connecting();
+        this.updateInterestOps();
         this.address = new InetSocketAddress(host, port);
         this.getSocketChannel().connect(this.address);
     }
@@ -292,6 +358,17 @@ abstract class Dispatcher {
         this.getSocketChannel().write(data);
     }
 
+    /**
+     * Write the content of the <code>data</code> buffers to the socket with a
+     * single gathering write.
+     *
+     * @param data      buffers holding the bytes to be written
+     * @param length    the number of buffers to write, starting at index 0
+     */
+    long send(ByteBuffer[] data, int length) throws IOException {
+        return this.getSocketChannel().write(data, 0, length);
+    }
+
     /**
      * Read from the socket into <code>data</code>.
      *
@@ -314,6 +391,7 @@ abstract class Dispatcher {
     public void close() {
         logger.info("close: " + this.toString());
         this.state.closing();
+        this.stopTicks();
         if (this.channel != null) {
             try {
                 if (this.channel instanceof ServerSocketChannel)
@@ -363,6 +441,7 @@ abstract class Dispatcher {
                 return;
             }
             this.state.connected();
+            this.updateInterestOps();
             logger.info("handle_connect_event" + this.toString());
             this.handle_connect();
         }
@@ -402,6 +481,46 @@ abstract class Dispatcher {
 
     void handle_tick_event() { this.handle_tick(); }
 
+    /**
+     * Schedule <code>task</code> to run in the thread of the Reactor of this
+     * channel after <code>delay</code> milliseconds.
+     *
+     * @param delay the delay in milliseconds
+     * @param task  the task
+     * @return the Timeout handle used to cancel the task
+     */
+    TimerWheel.Timeout schedule(long delay, Runnable task) {
+        return this.reactor.schedule(delay, task);
+    }
+
+    /**
+     * Invoke handle_tick_event every <code>interval</code> milliseconds until
+     * stopTicks is invoked or the channel is closed.
+     *
+     * @param interval the timer events period in milliseconds
+     */
+    void startTicks(final long interval) {
+        this.stopTicks();
+        final Dispatcher dispatcher = this;
+        this.tick_timeout = this.schedule(interval, new Runnable() {
+            public void run() {
+                if (dispatcher.state.closed())
+                    return;
+                dispatcher.tick_timeout = dispatcher.schedule(interval, this);
+                dispatcher.handle_tick_event();
+            }
+        });
+    }
+
+    /** Stop the timer events. */
+    void stopTicks() {
+        TimerWheel.Timeout timeout = this.tick_timeout;
+        if (timeout != null) {
+            this.tick_timeout = null;
+            timeout.cancel();
+        }
+    }
+
     public String toString() {
         if (this.channel == null)
             return super.toString();
@@ -409,7 +528,7 @@ abstract class Dispatcher {
             return this.channel.toString();
     }
 
-    static void loop(long user_interval, long timeout) throws IOException {
+    static void loop() throws IOException {
         try {
             if (default_selector == null)
                 default_selector = Selector.open();
@@ -417,102 +536,17 @@ abstract class Dispatcher {
             logger.severe(e.toString());
             return;
         }
-        loop(default_selector, user_interval, timeout);
+        loop(default_selector);
     }
 
     /**
-     *  Enter a polling loop that terminates when all open channels have been
-     *  closed.
-     *
-     *  The selector is a map whose items are the channels to watch.  As
-     *  channels are closed they are deleted from their map.
+     *  Enter the polling loop of the Reactor of <code>selector</code>.
      *
      * @param selector      Selector used for this loop
-     * @param user_interval the timer events period in milliseconds
-     * @param timeout       the select() call timeout
      */
-    static void loop(Selector selector, long user_interval, long timeout) throws IOException {
+    static void loop(Selector selector) throws IOException {
         assert selector != null :  "null selector";
-        Date lastTime = new Date();
-        while (! selector.keys().isEmpty()) {
-
-            setSelectionKeys(selector);
-            try {
-                selector.select(timeout);
-            } catch (IOException e) {
-                logger.severe(e.toString());
-                return;
-            }
-
-            /* Iterate over the resulting selected SelectionKeys and send the
-             * corresponding IO events. */
-            Iterator it = selector.selectedKeys().iterator();
-            SelectionKey key = null;
-            while (it.hasNext()) {
-                try {
-                    key = (SelectionKey) it.next();
-                } catch (java.util.ConcurrentModificationException e) {
-                    logger.severe("possibly skipping events after a close");
-                    it.remove();
-                    continue;
-                }
-                it.remove();
-
-                Dispatcher dispatcher = (Dispatcher) key.attachment();
-                if (key.isReadable())
-                    dispatcher.handle_read_event();
-                if (key.isValid() && key.isWritable())
-                    dispatcher.handle_write_event();
-                if (key.isValid() && key.isAcceptable())
-                    dispatcher.handle_accept_event();
-                if (key.isValid() && key.isConnectable())
-                    dispatcher.handle_connect_event();
-            }
-
-            /* Send the timer events. */
-            Date now = new Date();
-            if (now.getTime() - lastTime.getTime() >= user_interval) {
-                // Reset the bug counter on a timer event.
-                lastTime = now;
-                it = selector.keys().iterator();
-                while (it.hasNext()) {
-                    key = (SelectionKey) it.next();
-                    if (! key.isValid()) continue;
-                    Dispatcher dispatcher = (Dispatcher) key.attachment();
-                    dispatcher.handle_tick_event();
-                }
-            }
-        }
-    }
-
-    /* Set the SelectionKeys before the call to select. */
-    static int setSelectionKeys(Selector selector) {
-        int count = 0;
-        Iterator it = selector.keys().iterator();
-        while (it.hasNext()) {
-            int ops = 0;
-            SelectionKey key = (SelectionKey) it.next();
-            if (! key.isValid()) continue;
-            Dispatcher dispatcher = (Dispatcher) key.attachment();
-            if (dispatcher.readyToRead()) {
-                count++;
-                ops |= SelectionKey.OP_READ;
-            }
-            if (dispatcher.readyToWrite()) {
-                count++;
-                ops |= SelectionKey.OP_WRITE;
-            }
-            if (dispatcher.readyToAccept()) {
-                count++;
-                ops |= SelectionKey.OP_ACCEPT;
-            }
-            if (dispatcher.readyToConnect()) {
-                count++;
-                ops |= SelectionKey.OP_CONNECT;
-            }
-            key.interestOps(ops);
-        }
-        return count;
+        Reactor.get(selector).loop();
     }
 }
 
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+/**
+ * A map of int keys to non null values.
+ *
+ * The keys are stored in an int array with open addressing and linear
+ * probing, so that the keys are not boxed. A removed entry is filled by
+ * shifting back the following entries of its cluster, there are no
+ * tombstones. An IntMap is not thread safe.
+ */
+class IntMap {
+    int[] keys;
+    Object[] values;
+    int size = 0;
+    int mask;
+
+    IntMap() {
+        this(16);
+    }
+
+    /** @param capacity a power of two */
+    IntMap(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int index(int key) {
+        int i = hash(key) & this.mask;
+        while (this.values[i] != null && this.keys[i] != key)
+            i = (i + 1) & this.mask;
+        return i;
+    }
+
+    Object get(int key) {
+        return this.values[this.index(key)];
+    }
+
+    /** Map <code>key</code> to <code>value</code>, return the old value. */
+    Object put(int key, Object value) {
+        assert value != null : "null value";
+        int i = this.index(key);
+        Object old = this.values[i];
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (old == null && ++this.size > (this.keys.length >> 1))
+            this.resize(this.keys.length << 1);
+        return old;
+    }
+
+    /** Remove the mapping of <code>key</code>, return the old value. */
+    Object remove(int key) {
+        int i = this.index(key);
+        Object old = this.values[i];
+        if (old == null)
+            return null;
+        this.values[i] = null;
+        this.size--;
+
+        // Shift back the entries that cannot be found anymore.
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.values[j] == null)
+                break;
+            int home = hash(this.keys[j]) & this.mask;
+            if (((j - home) & this.mask) >= ((j - i) & this.mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    /** Return the values and clear the map. */
+    Object[] clear() {
+        Object[] result = new Object[this.size];
+        int n = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                result[n++] = this.values[i];
+                this.values[i] = null;
+            }
+        }
+        this.size = 0;
+        return result;
+    }
+
+    void resize(int capacity) {
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                int j = this.index(keys[i]);
+                this.keys[j] = keys[i];
+                this.values[j] = values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Random;
+import java.nio.charset.Charset;
+
+/**
+ * An index of the lines of a text, mapping byte offsets to lines.
+ *
+ * The index only holds the length in bytes of each line, including its
+ * newline. The line lengths are stored in chunks of at most CHUNK_SIZE
+ * lines, in a treap where each node holds the number of bytes and of lines
+ * of its subtree. Converting an offset to a line, a line to an offset, and
+ * applying an insert or a remove are O(log lines) operations. A remove does
+ * not need the removed text, the lines whose newline is removed are merged.
+ *
+ * The last line has no newline, it is empty when the text ends with a
+ * newline. Lines are numbered from zero. A LineIndex is not thread safe.
+ */
+class LineIndex {
+    static final int CHUNK_SIZE = 128;
+    static Random random = new Random();
+    Node root = null;
+    Charset charset;
+    int encoding;
+
+    LineIndex(Charset charset) {
+        this.charset = charset;
+        this.encoding = Rope.encoding(charset);
+        this.set("");
+    }
+
+    /** Return the length of the text in bytes. */
+    int length() {
+        return this.root.bytes;
+    }
+
+    /** Return the number of lines. */
+    int lines() {
+        return this.root.lines;
+    }
+
+    /** Index the lines of <code>text</code>. */
+    void set(String text) {
+        this.root = this.build(this.line_lengths(text, 0), 0);
+    }
+
+    /**
+     * Return the line of the byte at <code>offset</code>, a newline belongs
+     * to the line it terminates.
+     *
+     * @throws IndexOutOfBoundsException when offset is beyond the text
+     */
+    int line(int offset) {
+        if (offset < 0 || offset > this.length())
+            throw new IndexOutOfBoundsException("offset " + offset
+                                        + ", length " + this.length());
+        if (offset == this.length())
+            return this.lines() - 1;
+        int line = 0;
+        Node node = this.root;
+        while (true) {
+            int left = bytes(node.left);
+            if (offset < left) {
+                node = node.left;
+                continue;
+            }
+            offset -= left;
+            line += lines(node.left);
+            if (offset < node.nbytes) {
+                int i = 0;
+                while (offset >= node.lens[i])
+                    offset -= node.lens[i++];
+                return line + i;
+            }
+            offset -= node.nbytes;
+            line += node.lens.length;
+            node = node.right;
+        }
+    }
+
+    /**
+     * Return the byte offset of the start of <code>line</code>.
+     *
+     * @throws IndexOutOfBoundsException when there is no such line
+     */
+    int start(int line) {
+        if (line < 0 || line >= this.lines())
+            throw new IndexOutOfBoundsException("line " + line
+                                        + ", lines " + this.lines());
+        int offset = 0;
+        Node node = this.root;
+        while (true) {
+            int left = lines(node.left);
+            if (line < left) {
+                node = node.left;
+                continue;
+            }
+            line -= left;
+            offset += bytes(node.left);
+            if (line < node.lens.length) {
+                for (int i = 0; i < line; i++)
+                    offset += node.lens[i];
+                return offset;
+            }
+            line -= node.lens.length;
+            offset += node.nbytes;
+            node = node.right;
+        }
+    }
+
+    /**
+     * Insert <code>text</code> at byte <code>offset</code>.
+     *
+     * @throws IndexOutOfBoundsException when offset is beyond the text
+     */
+    void insert(int offset, String text) {
+        int line = this.line(offset);
+        int col = offset - this.start(line);
+        int[] lens = this.line_lengths(text, col);
+        Node[] parts = this.extract(line, 1);
+        int old = parts[1].lens[0];
+        // The end of the line follows the last line of the text.
+        lens[lens.length - 1] += old - col;
+        this.replace(parts, lens);
+    }
+
+    /**
+     * Remove <code>length</code> bytes at byte <code>offset</code>.
+     *
+     * @throws IndexOutOfBoundsException when the range is beyond the text
+     */
+    void remove(int offset, int length) {
+        if (length < 0 || offset + length > this.length())
+            throw new IndexOutOfBoundsException("offset " + offset + ", length "
+                                    + length + ", text length " + this.length());
+        int first = this.line(offset);
+        int col = offset - this.start(first);
+        int last = this.line(offset + length);
+        int end_col = offset + length - this.start(last);
+        Node[] parts = this.extract(first, last - first + 1);
+        int[] lens = { col + parts[1].lens[last - first] - end_col };
+        this.replace(parts, lens);
+    }
+
+    /**
+     * Return the lengths of the lines of <code>text</code>, the first line
+     * starting at column <code>col</code>.
+     */
+    int[] line_lengths(String text, int col) {
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n')
+                count++;
+        }
+        int[] lens = new int[count];
+        int start = 0;
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lens[n++] = Rope.byte_length(text, start, i + 1,
+                                                this.charset, this.encoding);
+                start = i + 1;
+            }
+        }
+        lens[n] = Rope.byte_length(text, start, text.length(),
+                                                this.charset, this.encoding);
+        lens[0] += col;
+        return lens;
+    }
+
+    /**
+     * Return the lines before <code>line</code>, the <code>count</code>
+     * lines at <code>line</code> as a single node, and the lines after.
+     */
+    Node[] extract(int line, int count) {
+        Node[] head = split(this.root, line);
+        Node[] tail = split(head[1], count);
+        int[] lens = new int[count];
+        collect(tail[0], lens, 0);
+        Node[] result = { head[0], new Node(lens, 0, count), tail[1] };
+        return result;
+    }
+
+    /**
+     * Replace the middle node of <code>parts</code> with the lines of
+     * <code>lens</code>. The chunks before and after are rebuilt with them
+     * so that successive edits do not fragment the chunks.
+     */
+    void replace(Node[] parts, int[] lens) {
+        Node left = parts[0];
+        Node right = parts[2];
+        int[] before = {};
+        int[] after = {};
+        if (left != null) {
+            Node[] last = remove_last(left);
+            left = last[0];
+            before = last[1].lens;
+        }
+        if (right != null) {
+            Node[] first = remove_first(right);
+            right = first[1];
+            after = first[0].lens;
+        }
+        int[] all = new int[before.length + lens.length + after.length];
+        System.arraycopy(before, 0, all, 0, before.length);
+        System.arraycopy(lens, 0, all, before.length, lens.length);
+        System.arraycopy(after, 0, all, before.length + lens.length, after.length);
+        this.root = merge(merge(left, this.build(all, 0)), right);
+    }
+
+    /** Build a treap from the line lengths starting at index start. */
+    Node build(int[] lens, int start) {
+        Node node = null;
+        for (int i = start; i < lens.length; i += CHUNK_SIZE)
+            node = merge(node, new Node(lens, i, Math.min(lens.length, i + CHUNK_SIZE)));
+        return node;
+    }
+
+    /** Copy the line lengths of the subtree to lens at index i. */
+    static int collect(Node node, int[] lens, int i) {
+        if (node == null)
+            return i;
+        i = collect(node.left, lens, i);
+        System.arraycopy(node.lens, 0, lens, i, node.lens.length);
+        return collect(node.right, lens, i + node.lens.length);
+    }
+
+    /** Split the subtree before <code>line</code>. */
+    static Node[] split(Node node, int line) {
+        Node[] result = new Node[2];
+        if (node == null)
+            return result;
+        int left = lines(node.left);
+        if (line <= left) {
+            Node[] parts = split(node.left, line);
+            node.left = parts[1];
+            node.update();
+            result[0] = parts[0];
+            result[1] = node;
+        } else if (line >= left + node.lens.length) {
+            Node[] parts = split(node.right, line - left - node.lens.length);
+            node.right = parts[0];
+            node.update();
+            result[0] = node;
+            result[1] = parts[1];
+        } else {
+            // Split the chunk of this node.
+            int i = line - left;
+            result[0] = merge(node.left, new Node(node.lens, 0, i));
+            result[1] = merge(new Node(node.lens, i, node.lens.length), node.right);
+        }
+        return result;
+    }
+
+    /** Merge two subtrees, all the lines of <code>a</code> come first. */
+    static Node merge(Node a, Node b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.update();
+        return b;
+    }
+
+    /** Return the subtree without its last node, and this last node. */
+    static Node[] remove_last(Node node) {
+        Node[] result = new Node[2];
+        if (node.right == null) {
+            result[0] = node.left;
+            node.left = null;
+            node.update();
+            result[1] = node;
+            return result;
+        }
+        Node[] parts = remove_last(node.right);
+        node.right = parts[0];
+        node.update();
+        result[0] = node;
+        result[1] = parts[1];
+        return result;
+    }
+
+    /** Return the first node of the subtree, and the subtree without it. */
+    static Node[] remove_first(Node node) {
+        Node[] result = new Node[2];
+        if (node.left == null) {
+            result[1] = node.right;
+            node.right = null;
+            node.update();
+            result[0] = node;
+            return result;
+        }
+        Node[] parts = remove_first(node.left);
+        node.left = parts[1];
+        node.update();
+        result[0] = parts[0];
+        result[1] = node;
+        return result;
+    }
+
+    static int bytes(Node node) {
+        return node == null ? 0 : node.bytes;
+    }
+
+    static int lines(Node node) {
+        return node == null ? 0 : node.lines;
+    }
+
+    /** A treap node. */
+    static class Node {
+        /** The lengths in bytes of the lines of the chunk. */
+        int[] lens;
+        int nbytes = 0;
+        int priority = random.nextInt();
+        Node left = null;
+        Node right = null;
+        /** The number of bytes of the subtree. */
+        int bytes;
+        /** The number of lines of the subtree. */
+        int lines;
+
+        /** A node with the line lengths of the range [start, end[ of lens. */
+        Node(int[] lens, int start, int end) {
+            this.lens = new int[end - start];
+            System.arraycopy(lens, start, this.lens, 0, end - start);
+            for (int i = 0; i < this.lens.length; i++)
+                this.nbytes += this.lens[i];
+            this.update();
+        }
+
+        void update() {
+            this.bytes = bytes(this.left) + this.nbytes + bytes(this.right);
+            this.lines = lines(this.left) + this.lens.length + lines(this.right);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Map;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.logging.Logger;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * The protocol counters of a connection, or the totals of the closed
+ * connections of a Server.
+ *
+ * The counters are LongAdders, an increment is a CAS on a cell that is not
+ * contended in the common case where a connection is served by one thread,
+ * and no lock is taken on the hot path. The events and the commands are
+ * counted by name in a ConcurrentHashMap whose lookup does not lock either.
+ *
+ * The MBeans are registered in the platform MBeanServer when the
+ * vimoir.netbeans.jmx property is set, under the "vimoir.netbeans" domain.
+ * A connection only allocates its Metrics when it registers its MBean.
+ */
+class Metrics {
+    static final String DOMAIN = "vimoir.netbeans";
+    static Logger logger = Logger.getLogger("vimoir.netbeans");
+    static AtomicInteger connection_ids = new AtomicInteger(0);
+    LongAdder bytes_in = new LongAdder();
+    LongAdder bytes_out = new LongAdder();
+    LongAdder messages_in = new LongAdder();
+    LongAdder messages_out = new LongAdder();
+    /** The LongAdder of each event name. */
+    ConcurrentHashMap<String, LongAdder> events =
+                                    new ConcurrentHashMap<String, LongAdder>();
+    /** The LongAdder of each command and function name. */
+    ConcurrentHashMap<String, LongAdder> commands =
+                                    new ConcurrentHashMap<String, LongAdder>();
+
+    /** Name of the counter of the events that are not in the protocol. */
+    static final String UNKNOWN_EVENT = "unknown";
+
+    /**
+     * Count an event received from Vim. The names that are not in the
+     * protocol are counted under UNKNOWN_EVENT, so that a peer cannot grow
+     * the map.
+     */
+    void event(String name) {
+        count(this.events, Netbeans.known_event(name) ? name : UNKNOWN_EVENT, 1);
+    }
+
+    /** Count a command or a function call sent to Vim. */
+    void command(String name) {
+        this.messages_out.increment();
+        count(this.commands, name, 1);
+    }
+
+    static void count(ConcurrentHashMap<String, LongAdder> map,
+                                                String name, long value) {
+        LongAdder adder = map.get(name);
+        if (adder == null) {
+            adder = new LongAdder();
+            LongAdder previous = map.putIfAbsent(name, adder);
+            if (previous != null)
+                adder = previous;
+        }
+        adder.add(value);
+    }
+
+    /** Add the counters of <code>other</code> to these counters. */
+    void add(Metrics other) {
+        this.bytes_in.add(other.bytes_in.sum());
+        this.bytes_out.add(other.bytes_out.sum());
+        this.messages_in.add(other.messages_in.sum());
+        this.messages_out.add(other.messages_out.sum());
+        add(this.events, other.events);
+        add(this.commands, other.commands);
+    }
+
+    static void add(ConcurrentHashMap<String, LongAdder> map,
+                            ConcurrentHashMap<String, LongAdder> other) {
+        Iterator<Map.Entry<String, LongAdder>> it = other.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, LongAdder> entry = it.next();
+            count(map, entry.getKey(), entry.getValue().sum());
+        }
+    }
+
+    /** Add the counts of <code>map</code> to the sorted <code>result</code>. */
+    static Map<String, Long> snapshot(ConcurrentHashMap<String, LongAdder> map,
+                                            Map<String, Long> result) {
+        Iterator<Map.Entry<String, LongAdder>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, LongAdder> entry = it.next();
+            String name = entry.getKey();
+            long value = entry.getValue().sum();
+            Long previous = result.get(name);
+            if (previous != null)
+                value += previous.longValue();
+            result.put(name, Long.valueOf(value));
+        }
+        return result;
+    }
+
+    /**
+     * Register an MBean in the platform MBeanServer.
+     *
+     * @return the name of the MBean, null on error
+     */
+    static ObjectName register(Object mbean, String properties) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (Exception e) {
+            logger.warning("registering the MBean " + properties + ": " + e);
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            logger.warning("unregistering the MBean " + name + ": " + e);
+        }
+    }
+
+    /** The MBean of a Netbeans connection. */
+    static class ConnectionBean implements ConnectionMXBean {
+        Netbeans nbsock;
+
+        ConnectionBean(Netbeans nbsock) {
+            this.nbsock = nbsock;
+        }
+
+        public String getRemoteAddress() {
+            return this.nbsock.toString();
+        }
+
+        public boolean isReady() {
+            return this.nbsock.ready;
+        }
+
+        public long getBytesIn() {
+            return this.nbsock.metrics.bytes_in.sum();
+        }
+
+        public long getBytesOut() {
+            return this.nbsock.metrics.bytes_out.sum();
+        }
+
+        public long getMessagesIn() {
+            return this.nbsock.metrics.messages_in.sum();
+        }
+
+        public long getMessagesOut() {
+            return this.nbsock.metrics.messages_out.sum();
+        }
+
+        public Map<String, Long> getEvents() {
+            return snapshot(this.nbsock.metrics.events,
+                                        new TreeMap<String, Long>());
+        }
+
+        public Map<String, Long> getCommands() {
+            return snapshot(this.nbsock.metrics.commands,
+                                        new TreeMap<String, Long>());
+        }
+
+        public long getOutputQueueSize() {
+            return this.nbsock.queued.get();
+        }
+
+        public int getPendingCalls() {
+            synchronized (this.nbsock.request_lock) {
+                return this.nbsock.pending.size;
+            }
+        }
+
+        public int getBuffers() {
+            return this.nbsock.bset.buffers().length;
+        }
+    }
+
+    /**
+     * The MBean of a Server. The protocol counters are the totals of the
+     * closed connections and of the current sessions.
+     */
+    static class ServerBean implements ServerMXBean {
+        Server server;
+
+        ServerBean(Server server) {
+            this.server = server;
+        }
+
+        Netbeans[] sessions() {
+            return this.server.sessions.toArray(new Netbeans[0]);
+        }
+
+        /** Return the counters of the sessions that have counters. */
+        Metrics[] metrics() {
+            Netbeans[] sessions = this.sessions();
+            Metrics[] result = new Metrics[sessions.length];
+            int count = 0;
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i].metrics != null)
+                    result[count++] = sessions[i].metrics;
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        public String getName() {
+            return this.server.config.name;
+        }
+
+        public String getClientClass() {
+            return this.server.config.constructor.getDeclaringClass().getName();
+        }
+
+        public int getConnections() {
+            return this.server.connections.get();
+        }
+
+        public int getSessions() {
+            return this.server.sessions.size();
+        }
+
+        public long getAcceptedConnections() {
+            return this.server.accepted_count.sum();
+        }
+
+        public long getRejectedMaxSessions() {
+            return this.server.rejected_sessions.sum();
+        }
+
+        public long getRejectedAcceptRate() {
+            return this.server.rejected_rate.sum();
+        }
+
+        public long getHandshakeTimeouts() {
+            return this.server.handshake_timeouts.sum();
+        }
+
+        public long getStartupMeanMillis() {
+            synchronized (this.server) {
+                if (this.server.startups == 0)
+                    return 0;
+                return this.server.startup_total / this.server.startups / 1000000L;
+            }
+        }
+
+        public long getStartupMaxMillis() {
+            synchronized (this.server) {
+                return this.server.startup_max / 1000000L;
+            }
+        }
+
+        public long getBytesIn() {
+            long total = this.server.closed.bytes_in.sum();
+            Metrics[] metrics = this.metrics();
+            for (int i = 0; i < metrics.length; i++)
+                total += metrics[i].bytes_in.sum();
+            return total;
+        }
+
+        public long getBytesOut() {
+            long total = this.server.closed.bytes_out.sum();
+            Metrics[] metrics = this.metrics();
+            for (int i = 0; i < metrics.length; i++)
+                total += metrics[i].bytes_out.sum();
+            return total;
+        }
+
+        public long getMessagesIn() {
+            long total = this.server.closed.messages_in.sum();
+            Metrics[] metrics = this.metrics();
+            for (int i = 0; i < metrics.length; i++)
+                total += metrics[i].messages_in.sum();
+            return total;
+        }
+
+        public long getMessagesOut() {
+            long total = this.server.closed.messages_out.sum();
+            Metrics[] metrics = this.metrics();
+            for (int i = 0; i < metrics.length; i++)
+                total += metrics[i].messages_out.sum();
+            return total;
+        }
+
+        public Map<String, Long> getEvents() {
+            Map<String, Long> result = snapshot(this.server.closed.events,
+                                        new TreeMap<String, Long>());
+            Metrics[] metrics = this.metrics();
+            for (int i = 0; i < metrics.length; i++)
+                snapshot(metrics[i].events, result);
+            return result;
+        }
+
+        public Map<String, Long> getCommands() {
+            Map<String, Long> result = snapshot(this.server.closed.commands,
+                                        new TreeMap<String, Long>());
+            Metrics[] metrics = this.metrics();
+            for (int i = 0; i < metrics.length; i++)
+                snapshot(metrics[i].commands, result);
+            return result;
+        }
+
+        public int getBuffers() {
+            int total = 0;
+            Netbeans[] sessions = this.sessions();
+            for (int i = 0; i < sessions.length; i++)
+                total += sessions[i].bset.buffers().length;
+            return total;
+        }
+
+        public long getSelectIterations() {
+            long total = this.server.reactor.iterations.sum();
+            Reactor[] workers = Reactor.workers;
+            for (int i = 0; i < workers.length; i++)
+                total += workers[i].iterations.sum();
+            return total;
+        }
+    }
+}
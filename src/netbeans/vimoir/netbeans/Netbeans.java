@@ -16,48 +16,99 @@
 
 package vimoir.netbeans;
 
-import java.net.URL;
-import java.io.InputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.channels.SocketChannel;
 import java.util.Properties;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.BitSet;
 import java.util.Observer;
 import java.util.Observable;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
-import java.text.MessageFormat;
+import java.util.logging.Level;
 import java.lang.reflect.Method;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.lang.reflect.InvocationTargetException;
+import javax.management.ObjectName;
 
 class Netbeans extends Connection implements NetbeansSocket {
     private static Pattern re_auth;
-    private static Pattern re_event;
-    private static Pattern re_response;
-    private static Pattern re_lnumcol;
-    private static Pattern re_escape;
-    private static Pattern re_unescape;
-    private static Pattern re_token_split;
+    static final int REQUEST_CAPACITY = 256;
+    /** The delay in milliseconds before retrying a failed sync_text. */
+    static final long SYNC_RETRY = 1000;
+    static final String EVT_BALLOONTEXT = "balloonText";
+    static final String EVT_BUTTONRELEASE = "buttonRelease";
+    static final String EVT_INSERT = "insert";
+    static final String EVT_KEYATPOS = "keyAtPos";
+    static final String EVT_KEYCOMMAND = "keyCommand";
+    static final String EVT_NEWDOTANDMARK = "newDotAndMark";
+    static final String EVT_REMOVE = "remove";
+    static final String EVT_STARTUPDONE = "startupDone";
+    static final String EVT_VERSION = "version";
+    /** The names of the events sent by Vim. */
+    static final String[] EVENTS = {
+        "balloonEval", EVT_BALLOONTEXT, EVT_BUTTONRELEASE, "disconnect",
+        "fileClosed", "fileModified", "fileOpened", "geometry", EVT_INSERT,
+        EVT_KEYATPOS, EVT_KEYCOMMAND, "killed", EVT_NEWDOTANDMARK, "quit",
+        EVT_REMOVE, "revert", "save", EVT_STARTUPDONE, "unmodified",
+        EVT_VERSION,
+    };
+    /** The EVENTS open addressing hash table, see event_name. */
+    static final String[] EVENT_TABLE = event_table();
     Server server;
     Properties props;
     NetbeansEventHandler client = null;
+    DispatchTable commands = null;
     BufferSet bset;
-    ConcurrentLinkedQueue observer_fifo = new ConcurrentLinkedQueue();
-    boolean ready = false;
+    /** The pending function calls keyed by seqno, guarded by request_lock. */
+    IntMap pending = new IntMap();
+    long call_timeout;
+    NetbeansObservable writability = new NetbeansObservable();
+    /** The executor of the client handlers, null when they run inline. */
+    SerialExecutor executor = null;
+    AtomicBoolean tick_pending = new AtomicBoolean(false);
+    /**
+     * The coalescing window of the insert and remove events in milliseconds,
+     * -1 when they are not coalesced, 0 when coalesced within a read.
+     */
+    long coalesce_window = -1;
+    /** The pending coalesced edit, owned by the thread of the handlers. */
+    Edit edit = null;
+    TimerWheel.Timeout edit_timeout = null;
+    /** The Throttle of an event name, owned by the thread of the handlers. */
+    HashMap<String, Throttle> throttles = new HashMap<String, Throttle>();
+    /** Mirror the text of the buffers. */
+    boolean shadow = false;
+    /** Index the lines of the buffers. */
+    boolean line_index = false;
+    /** The period of the resynchronization of the mirrors in milliseconds. */
+    long shadow_resync;
+    volatile boolean ready = false;
     int seqno = 0;
-    int last_seqno = 0;
+    /** The StringBuilder of the requests, and its lock. */
+    StringBuilder request = new StringBuilder(REQUEST_CAPACITY);
+    Object request_lock = new Object();
+    Parser parser = new Parser();
+    /** The System.nanoTime of the accept of the connection. */
+    long accepted = 0;
+    /** True while the connection is counted by the Server connections. */
+    AtomicBoolean counted = new AtomicBoolean(false);
+    /** Set by the first close(), close() may be called from any thread. */
+    AtomicBoolean closed = new AtomicBoolean(false);
+    ObjectName mbean = null;
 
     static {
         re_auth = Pattern.compile("^\\s*AUTH\\s*(\\S+)\\s*$");
-        re_event = Pattern.compile("^\\s*(\\d+):(\\S+)=(\\d+)\\s*(.*)\\s*$");
-        re_response = Pattern.compile("^\\s*(\\d+)\\s*(.*)\\s*$");
-        re_lnumcol = Pattern.compile("^(\\d+)/(\\d+)");
-        re_escape = Pattern.compile("[\"\\n\\t\\r\\\\]");
-        re_unescape = Pattern.compile("\\\\[\"ntr\\\\]");
-        re_token_split = Pattern.compile("\\s*\"((?:\\\"|[^\"])+)\"\\s*|\\s*([^ \"]+)\\s*");
     }
 
     Netbeans(Server server, Properties props) throws IOException {
@@ -68,14 +119,208 @@ class Netbeans extends Connection implements NetbeansSocket {
         this.setTerminator("\n");
 
         // Set the encoding.
-        Charset charset = Charset.forName(
-                props.getProperty("vimoir.netbeans.encoding", "UTF-8"));
-        this.encoder = charset.newEncoder();
-        this.decoder = charset.newDecoder();
+        this.setCharset(Charset.forName(
+                props.getProperty("vimoir.netbeans.encoding", "UTF-8")));
+
+        // Set the output queue watermarks.
+        int policy = SEND_QUEUE;
+        String name = props.getProperty("vimoir.netbeans.send_policy", "queue");
+        if (name.equals("block"))
+            policy = SEND_BLOCK;
+        else if (name.equals("fail"))
+            policy = SEND_FAIL;
+        this.setWatermarks(
+            Long.parseLong(props.getProperty(
+                            "vimoir.netbeans.low_watermark", "262144")),
+            Long.parseLong(props.getProperty(
+                            "vimoir.netbeans.high_watermark", "1048576")),
+            policy);
+
+        // The default timeout of the function calls.
+        this.call_timeout = Long.parseLong(props.getProperty(
+                            "vimoir.netbeans.call_timeout", "5000"));
+
+        // Coalesce the insert and remove events.
+        this.coalesce_window = Long.parseLong(props.getProperty(
+                            "vimoir.netbeans.coalesce_window", "-1"));
+
+        // The throttling policies of the events.
+        String[] throttled = { EVT_NEWDOTANDMARK, EVT_BALLOONTEXT, EVT_BUTTONRELEASE };
+        for (int i = 0; i < throttled.length; i++) {
+            Throttle throttle = Throttle.parse(this, throttled[i], props.getProperty(
+                            "vimoir.netbeans.throttle." + throttled[i], "none"));
+            if (throttle != null)
+                this.throttles.put(throttled[i], throttle);
+        }
+
+        // Mirror the text and index the lines of the buffers.
+        this.shadow = Boolean.valueOf(props.getProperty(
+                            "vimoir.netbeans.shadow", "false")).booleanValue();
+        this.line_index = Boolean.valueOf(props.getProperty(
+                            "vimoir.netbeans.line_index", "false")).booleanValue();
+        this.shadow_resync = Long.parseLong(props.getProperty(
+                            "vimoir.netbeans.shadow.resync", "60000"));
+
+        // Run the client handlers in the select loop or in a serial executor.
+        if (props.getProperty("vimoir.netbeans.executor", "inline").equals("serial"))
+            this.executor = new SerialExecutor();
+    }
+
+    /**
+     * Run <code>task</code> in the select loop when the client handlers run
+     * inline, otherwise queue it to the serial executor of the connection.
+     */
+    void dispatch(Runnable task) {
+        if (this.executor == null)
+            task.run();
+        else
+            this.executor.execute(task);
     }
 
+    /**
+     * Set the client and its DispatchTable, the table is built once per
+     * client class.
+     */
     void set_client(NetbeansEventHandler client) {
         this.client = client;
+        this.commands = DispatchTable.get(client.getClass());
+    }
+
+    /** Register the channel and start the timer events. */
+    void setSocketChannel(SocketChannel channel) {
+        super.setSocketChannel(channel);
+        if (! this.connected()) {
+            // The channel could not be registered and close() ignores a
+            // connection that has never been connected.
+            if (this.server != null)
+                this.server.unregister(this);
+            return;
+        }
+        long user_interval = Long.parseLong(this.props.getProperty(
+                                    "vimoir.netbeans.user_interval", "200"));
+        if (user_interval > 0 && this.client_ticks())
+            this.startTicks(user_interval);
+        if ((this.shadow || this.line_index) && this.shadow_resync > 0)
+            this.schedule_resync();
+
+        // The counters are set before the session is ready.
+        if (this.server.jmx) {
+            this.metrics = new Metrics();
+            this.mbean = Metrics.register(new Metrics.ConnectionBean(this),
+                "type=Connection,port=" + channel.socket().getLocalPort()
+                + ",id=" + Metrics.connection_ids.incrementAndGet());
+        }
+
+        // Close the connection when the handshake is not completed in time.
+        if (this.server.handshake_timeout > 0) {
+            final Netbeans nbsock = this;
+            this.schedule(this.server.handshake_timeout, new Runnable() {
+                public void run() {
+                    if (nbsock.ready || ! nbsock.connected())
+                        return;
+                    nbsock.server.handshake_expired(nbsock);
+                    nbsock.close();
+                }
+            });
+        }
+    }
+
+    /** Resynchronize the mirrors of the buffers every shadow_resync ms. */
+    void schedule_resync() {
+        final Netbeans nbsock = this;
+        this.schedule(this.shadow_resync, new Runnable() {
+            public void run() {
+                if (! nbsock.connected())
+                    return;
+                nbsock.dispatch(new Runnable() {
+                    public void run() {
+                        NetbeansBuffer[] buffers = nbsock.bset.buffers();
+                        for (int i = 0; i < buffers.length; i++) {
+                            if (buffers[i].mirrored())
+                                nbsock.sync_text(buffers[i]);
+                        }
+                    }
+                });
+                nbsock.schedule_resync();
+            }
+        });
+    }
+
+    /**
+     * Fetch the buffer text with getText to seed or check its mirror.
+     *
+     * <p>Vim processes the requests and sends the events in order, and the
+     * events are applied to the mirror in the thread that completes the
+     * reply. So when the reply is processed, the mirror has been updated
+     * with all the events sent by Vim before the reply and must be equal to
+     * the text of the reply. The events received while the mirror is not
+     * synced are ignored, the reply includes them.
+     *
+     * <p>When getText times out, on a large buffer whose text is not
+     * received within the call timeout for example, it is called again after
+     * SYNC_RETRY milliseconds and without a timeout. The other failures are
+     * logged, the mirror is then synced by the next periodic check.
+     */
+    void sync_text(NetbeansBuffer buf) {
+        this.sync_text(buf, this.call_timeout);
+    }
+
+    void sync_text(final NetbeansBuffer buf, long timeout) {
+        final Netbeans nbsock = this;
+        buf.mirror(this.encoder.charset(), this.shadow, this.line_index);
+        this.call(buf, "getText", "", timeout).thenAccept(new Consumer<String[]>() {
+            public void accept(String[] reply) {
+                String text = reply.length > 0 ? reply[0] : "";
+                if (! buf.resync(text))
+                    logger.warning("the mirror of " + buf.pathname
+                                    + " has drifted and is resynchronized");
+            }
+        }).exceptionally(new Function<Throwable, Void>() {
+            public Void apply(Throwable e) {
+                nbsock.sync_failed(buf, e.getCause() != null ? e.getCause() : e);
+                return null;
+            }
+        });
+    }
+
+    /** Log the failure of sync_text and retry it after a timeout. */
+    void sync_failed(final NetbeansBuffer buf, Throwable e) {
+        if (! this.connected() || buf.buf_id < 0 || ! buf.mirrored())
+            return;
+        if (! (e instanceof TimeoutException)) {
+            logger.warning("cannot sync the mirror of " + buf.pathname
+                                                        + ": " + e.toString());
+            return;
+        }
+        logger.warning("cannot sync the mirror of " + buf.pathname
+                                            + ": " + e.toString() + ", retrying");
+        final Netbeans nbsock = this;
+        this.schedule(SYNC_RETRY, new Runnable() {
+            public void run() {
+                nbsock.dispatch(new Runnable() {
+                    public void run() {
+                        if (nbsock.connected() && buf.buf_id > 0 && buf.mirrored())
+                            nbsock.sync_text(buf, 0);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Return true when the client processes timer events, that is when its
+     * event_tick method is not the NetbeansClient empty implementation.
+     */
+    boolean client_ticks() {
+        if (this.client == null)
+            return false;
+        try {
+            Method method = this.client.getClass().getMethod(
+                                            "event_tick", new Class[0]);
+            return method.getDeclaringClass() != NetbeansClient.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 
     /** Terminate the server. */
@@ -85,26 +330,77 @@ class Netbeans extends Connection implements NetbeansSocket {
     }
 
     public void close() {
-        if (! this.connected())
+        if (! this.connected() || ! this.closed.compareAndSet(false, true))
             return;
         super.close();
         this.ready = false;
+        if (this.server != null)
+            this.server.unregister(this);
+        Metrics.unregister(this.mbean);
+        this.mbean = null;
+
+        // Fail the pending function calls.
+        Object[] calls = null;
+        synchronized (this.request_lock) {
+            calls = this.pending.clear();
+        }
+        for (int i = 0; i < calls.length; i++) {
+            PendingCall call = (PendingCall) calls[i];
+            call.cancel_timeout();
+            call.future.completeExceptionally(new NetbeansException(
+                    "Netbeans session closed before the reply to " + call));
+        }
 
         logger.info(this.toString() + " disconnected");
         if (this.client != null) {
-            try {
-                this.client.event_disconnect();
-            } catch (Throwable e) {
-                this.handle_error(e);
-            }
+            final Netbeans nbsock = this;
+            this.dispatch(new Runnable() {
+                public void run() {
+                    nbsock.flush_edit();
+                    Iterator<Throttle> it = nbsock.throttles.values().iterator();
+                    while (it.hasNext())
+                        it.next().clear();
+                    try {
+                        nbsock.client.event_disconnect();
+                    } catch (Throwable e) {
+                        nbsock.handle_error(e);
+                    }
+                }
+            });
         }
     }
 
     /** Process new line terminated netbeans message. */
     void found_terminator() throws NetbeansException {
-        String msg = this.getBuff();
+        final String msg = this.getBuff();
         logger.finest(this.toString() + " " + msg);
+        if (this.metrics != null)
+            this.metrics.messages_in.increment();
 
+        if (! this.connected())
+            return;
+        if (this.executor == null) {
+            this.process_message(msg);
+            return;
+        }
+        final Netbeans nbsock = this;
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    nbsock.process_message(msg);
+                } catch (NetbeansException e) {
+                    nbsock.handle_error(e);
+                    System.exit(1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parse a netbeans message and invoke the client handlers, in the select
+     * loop or in the serial executor of the connection.
+     */
+    void process_message(String msg) throws NetbeansException {
         if (! this.connected())
             return;
         if (! this.ready) {
@@ -112,60 +408,163 @@ class Netbeans extends Connection implements NetbeansSocket {
             return;
         }
 
-        Parser parsed = new Parser(msg);
+        Parser parsed = this.parser.parse(msg);
+        // Deliver the pending edit before any other message.
+        if (this.edit != null && ! (parsed.is_event
+                && (parsed.event == EVT_INSERT || parsed.event == EVT_REMOVE)))
+            this.flush_edit();
         if (parsed.is_event) {
-            Class[] parameterTypes = { parsed.getClass() };
-            Object[] args = { parsed };
-            String event = "evt_" + parsed.event;
-            Exception exception = null;
+            if (this.metrics != null)
+                this.metrics.event(parsed.event);
+            MethodHandle handle = DispatchTable.event(parsed.event);
+            // Silently ignore unhandled events.
+            if (handle == null)
+                return;
             try {
-                Method method = this.getClass().getDeclaredMethod(
-                                                event, parameterTypes);
-                method.invoke((Object) this, args);
-            } catch (NoSuchMethodException e) {
-                // Silently ignore unhandled events.
-            } catch (IllegalAccessException e) {
-                exception = e;
-            } catch (InvocationTargetException e) {
-                exception = e;
-            }
-            if (exception != null) {
-                Throwable cause = exception.getCause();
-                if (cause == null)
-                    cause = exception;
-                logger.severe(cause.toString());
-                cause.printStackTrace();
+                handle.invokeExact(this, parsed);
+            } catch (Throwable e) {
+                logger.severe(e.toString());
+                e.printStackTrace();
                 System.exit(1);
             }
         // A function reply: process the reply.
         } else {
-            // Vim may send multiple replies for one function request.
-            if (parsed.seqno == this.last_seqno)
+            PendingCall call = null;
+            synchronized (this.request_lock) {
+                call = (PendingCall) this.pending.remove(parsed.seqno);
+            }
+            // Vim may send multiple replies for one function request, and a
+            // reply may arrive after the timeout of its call.
+            if (call == null) {
+                logger.finest("ignoring reply with no pending call: " + msg);
                 return;
-            this.last_seqno = parsed.seqno;
-
-            if (this.observer_fifo.isEmpty())
-                throw new NetbeansException("got a function reply"
-                        + " with no matching function request");
+            }
+            call.cancel_timeout();
 
-            NetbeansFunction function = (NetbeansFunction) this.observer_fifo.poll();
-            if (function.seqno != parsed.seqno)
-                throw new NetbeansException("no match: expected seqno '"
-                        + function.seqno + "' / seqno in function reply '"
-                        + parsed.seqno + "'");
             String[] arg = {};
             if (parsed.nbstring.equals(""))
-                arg = parsed.arg_list;
+                arg = parsed.arg_list();
             else {
                 String[] tmp = { parsed.nbstring };
                 arg = tmp;
             }
-            try {
-                function.notifyObservers(arg);
-            } catch (Throwable e) {
-                this.handle_error(e);
+            call.future.complete(arg);
+        }
+    }
+
+    /** Deliver the edit coalesced within a read. */
+    void read_complete() {
+        if (this.coalesce_window != 0 || ! this.ready)
+            return;
+        final Netbeans nbsock = this;
+        this.dispatch(new Runnable() {
+            public void run() { nbsock.flush_edit(); }
+        });
+    }
+
+    /**
+     * Merge an insert or a remove event with the pending edit when they are
+     * contiguous on the same buffer, otherwise deliver the pending edit and
+     * make the event the new pending edit.
+     *
+     * @param event     EVT_INSERT or EVT_REMOVE
+     * @param buf       the buffer
+     * @param offset    the byte offset of the event
+     * @param text      the inserted text, null for a remove
+     * @param length    the length in bytes of the inserted or removed text
+     */
+    void coalesce(String event, NetbeansBuffer buf, int offset,
+                                                String text, int length) {
+        Edit edit = this.edit;
+        if (edit != null && edit.buf == buf && edit.event == event) {
+            // Typing: the insert follows the pending insert.
+            if (event == EVT_INSERT && offset == edit.offset + edit.length) {
+                edit.text.append(text);
+                edit.length += length;
+                edit.last = System.nanoTime();
+                return;
+            }
+            if (event == EVT_REMOVE) {
+                // Deleting forward: the remove is at the same offset.
+                if (offset == edit.offset) {
+                    edit.length += length;
+                    edit.last = System.nanoTime();
+                    return;
+                }
+                // Backspacing: the remove ends at the pending offset.
+                if (offset + length == edit.offset) {
+                    edit.offset = offset;
+                    edit.length += length;
+                    edit.last = System.nanoTime();
+                    return;
+                }
             }
         }
+        this.flush_edit();
+        this.edit = new Edit(event, buf, offset, text, length);
+        if (this.coalesce_window > 0)
+            this.schedule_edit(this.edit, this.coalesce_window);
+    }
+
+    /**
+     * Deliver <code>edit</code> when no event has been merged into it during
+     * the coalesce window. As with the debounce Throttle, the timer is not
+     * rescheduled on each merged event: on expiration, it checks that the
+     * edit is still the pending one and when its last event was received.
+     */
+    void schedule_edit(final Edit edit, long delay) {
+        final Netbeans nbsock = this;
+        this.edit_timeout = this.schedule(delay, new Runnable() {
+            public void run() {
+                nbsock.dispatch(new Runnable() {
+                    public void run() { nbsock.expire_edit(edit); }
+                });
+            }
+        });
+    }
+
+    void expire_edit(Edit edit) {
+        // The edit has already been delivered.
+        if (this.edit != edit)
+            return;
+        long elapsed = (System.nanoTime() - edit.last) / 1000000L;
+        if (elapsed < this.coalesce_window) {
+            this.schedule_edit(edit, this.coalesce_window - elapsed);
+            return;
+        }
+        this.flush_edit();
+    }
+
+    /** Deliver the pending edit to the client. */
+    void flush_edit() {
+        Edit edit = this.edit;
+        if (edit == null)
+            return;
+        this.edit = null;
+        if (this.edit_timeout != null) {
+            this.edit_timeout.cancel();
+            this.edit_timeout = null;
+        }
+        edit.buf.set_offset(edit.offset);
+        try {
+            if (edit.event == EVT_INSERT)
+                this.client.event_insert(edit.buf, edit.text.toString());
+            else
+                this.client.event_remove(edit.buf, edit.length);
+        } catch (Throwable e) {
+            this.handle_error(e);
+        }
+    }
+
+    /** Return the length of <code>text</code> encoded in the charset. */
+    int byte_length(String text) {
+        int len = text.length();
+        int i = 0;
+        while (i < len && text.charAt(i) < 0x80)
+            i++;
+        if (i == len && this.ascii)
+            return len;
+        return text.getBytes(this.encoder.charset()).length;
     }
 
     /** Process initial netbeans messages. */
@@ -187,15 +586,20 @@ class Netbeans extends Connection implements NetbeansSocket {
         // '0:version=0 "2.3"'
         // '0:startupDone=0'
         } else {
-            Parser parsed = new Parser(msg);
+            Parser parsed = this.parser.parse(msg);
             if (parsed.is_event) {
+                if (this.metrics != null)
+                    this.metrics.event(parsed.event);
                 try {
-                    if (parsed.event.equals("version")) {
+                    if (parsed.event == EVT_VERSION) {
                         this.client.event_version(parsed.nbstring);
                         return;
                     }
-                    else if (parsed.event.equals("startupDone")) {
+                    else if (parsed.event == EVT_STARTUPDONE) {
                         this.ready = true;
+                        this.server.register(this);
+                        if (this.accepted != 0)
+                            this.server.startup_done(System.nanoTime() - this.accepted);
                         this.client.event_startupDone();
                         return;
                     }
@@ -212,6 +616,27 @@ class Netbeans extends Connection implements NetbeansSocket {
         return this.bset.get(pathname);
     }
 
+    public boolean is_writable() {
+        return this.writable;
+    }
+
+    public long get_output_queue_size() {
+        return this.queued.get();
+    }
+
+    public void add_writability_observer(Observer observer) {
+        this.writability.addObserver(observer);
+    }
+
+    /** Notify the writability observers. */
+    void writability_changed(boolean writable) {
+        try {
+            this.writability.notifyObservers(Boolean.valueOf(writable));
+        } catch (Throwable e) {
+            this.handle_error(e);
+        }
+    }
+
     /** Override log_info to use the logger. */
     void log_info(String message) {
         logger.severe(message);
@@ -220,28 +645,54 @@ class Netbeans extends Connection implements NetbeansSocket {
     //-----------------------------------------------------------------------
     //  Events
     //-----------------------------------------------------------------------
+    /**
+     * Deliver an event to the client through the Throttle of the event, or
+     * immediately when the event is not throttled.
+     */
+    void deliver(String event, Runnable delivery) {
+        Throttle throttle = this.throttles.get(event);
+        if (throttle == null)
+            delivery.run();
+        else
+            throttle.submit(delivery);
+    }
+
     /** Report the text under the mouse pointer. */
     void evt_balloonText(Parser parsed) {
-        try {
-            this.client.event_balloonText(parsed.nbstring);
-        } catch (Throwable e) {
-            this.handle_error(e);
-        }
+        final String text = parsed.nbstring;
+        final Netbeans nbsock = this;
+        this.deliver(EVT_BALLOONTEXT, new Runnable() {
+            public void run() {
+                try {
+                    nbsock.client.event_balloonText(text);
+                } catch (Throwable e) {
+                    nbsock.handle_error(e);
+                }
+            }
+        });
     }
 
     /** Report which button was pressed and the cursor location. */
     void evt_buttonRelease(Parser parsed) {
-        assert parsed.arg_list.length == 3 : "invalid format in buttonRelease event";
+        assert parsed.argc == 3 : "invalid format in buttonRelease event";
         NetbeansBuffer buf = this.bset.getbuf_at(parsed.buf_id);
         assert buf != null : "invalid bufId: " + parsed.buf_id + " in buttonRelease";
-        int button = Integer.parseInt(parsed.arg_list[0]);
-        buf.lnum = Integer.parseInt(parsed.arg_list[1]);
-        buf.col = Integer.parseInt(parsed.arg_list[2]);
-        try {
-            this.client.event_buttonRelease(buf, button);
-        } catch (Throwable e) {
-            this.handle_error(e);
-        }
+        final int button = parsed.int_arg(0);
+        final int lnum = parsed.int_arg(1);
+        final int col = parsed.int_arg(2);
+        final NetbeansBuffer buffer = buf;
+        final Netbeans nbsock = this;
+        this.deliver(EVT_BUTTONRELEASE, new Runnable() {
+            public void run() {
+                buffer.lnum = lnum;
+                buffer.col = col;
+                try {
+                    nbsock.client.event_buttonRelease(buffer, button);
+                } catch (Throwable e) {
+                    nbsock.handle_error(e);
+                }
+            }
+        });
     }
 
     /** Process a disconnect netbeans event. */
@@ -265,6 +716,10 @@ class Netbeans extends Connection implements NetbeansSocket {
                     || parsed.buf_id == 0) : "got fileOpened with wrong bufId";
             if (parsed.buf_id == 0)
                 this.send_cmd(buf, "putBufferNumber", this.quote(pathname));
+            if (this.shadow || this.line_index) {
+                buf.unmirror();
+                this.sync_text(buf);
+            }
         }
         try {
             this.client.event_fileOpened(buf);
@@ -275,10 +730,20 @@ class Netbeans extends Connection implements NetbeansSocket {
 
     /** Text 'text' has been inserted in Vim at byte position 'offset'. */
     void evt_insert(Parser parsed) {
-        assert parsed.arg_list.length == 1 : "invalid format in insert event";
+        assert parsed.argc == 1 : "invalid format in insert event";
         NetbeansBuffer buf = this.bset.getbuf_at(parsed.buf_id);
         assert buf != null : "invalid bufId: " + parsed.buf_id + " in insert";
-        buf.offset = Integer.parseInt(parsed.arg_list[0]);
+        int offset = parsed.int_arg(0);
+        if (buf.mirrored() && ! buf.insert(offset, parsed.nbstring)) {
+            logger.warning("insert event out of the mirror of " + buf.pathname);
+            this.sync_text(buf);
+        }
+        if (this.coalesce_window >= 0) {
+            this.coalesce(EVT_INSERT, buf, offset, parsed.nbstring,
+                                        this.byte_length(parsed.nbstring));
+            return;
+        }
+        buf.set_offset(offset);
         try {
             this.client.event_insert(buf, parsed.nbstring);
         } catch (Throwable e) {
@@ -301,51 +766,45 @@ class Netbeans extends Connection implements NetbeansSocket {
     void evt_keyAtPos(Parser parsed) {
         NetbeansBuffer buf = this.bset.getbuf_at(parsed.buf_id);
         assert buf != null : "invalid bufId: " + parsed.buf_id + " in keyAtPos";
-        assert parsed.arg_list.length == 2 : "invalid arg in keyAtPos";
+        assert parsed.argc == 2 : "invalid arg in keyAtPos";
         if (parsed.nbstring.equals("")) {
             logger.finest("empty string in keyAtPos");
             return;
         }
 
-        Matcher matcher = re_lnumcol.matcher(parsed.arg_list[1]);
-        boolean match = matcher.matches();
-        assert match : "invalid lnum/col: " + parsed.arg_list[1];
-        buf.lnum = Integer.parseInt((matcher.group(1)));
-        buf.col = Integer.parseInt((matcher.group(2)));
+        int start = parsed.arg_start[1];
+        int end = parsed.arg_end[1];
+        int slash = parsed.msg.indexOf('/', start);
+        assert slash != -1 && slash < end : "invalid lnum/col: " + parsed.arg(1);
+        buf.lnum = parsed.number(start, slash);
+        buf.col = parsed.number(slash + 1, end);
 
-        String[] splitted = parsed.nbstring.trim().split("\\s+", 2);
-        int len = splitted.length;
+        // Split the command name from its arguments.
+        String cmd = parsed.nbstring.trim();
         String args = "";
-        if (len == 2)
-            args = splitted[1];
-        Class[] parameterTypes = { buf.getClass(), args.getClass() };
-        Object[] parameters = { buf, args };
-        String cmd = "cmd_" + splitted[0];
-        Method method = null;
-        try {
-            method = this.client.getClass().getDeclaredMethod(
-                                            cmd, parameterTypes);
-        } catch (NoSuchMethodException e) {
+        int idx = 0;
+        while (idx < cmd.length() && ! is_space(cmd.charAt(idx)))
+            idx++;
+        if (idx < cmd.length()) {
+            int i = idx;
+            while (is_space(cmd.charAt(i)))
+                i++;
+            args = cmd.substring(i);
+            cmd = cmd.substring(0, idx);
+        }
+        MethodHandle handle = this.commands.command(cmd);
+        if (handle == null) {
             try {
-                this.client.default_cmd_processing(buf, splitted[0], args);
+                this.client.default_cmd_processing(buf, cmd, args);
             } catch (Exception exception) {
                 this.handle_error(exception);
             }
             return;
         }
-        Exception exception = null;
         try {
-            method.invoke((Object) this.client, parameters);
-        } catch (IllegalAccessException e) {
-            exception = e;
-        } catch (InvocationTargetException e) {
-            exception = e;
-        }
-        if (exception != null) {
-            Throwable cause = exception.getCause();
-            if (cause == null)
-                cause = exception;
-            this.handle_error(cause);
+            handle.invokeExact(this.client, buf, args);
+        } catch (Throwable e) {
+            this.handle_error(e);
         }
     }
 
@@ -353,33 +812,60 @@ class Netbeans extends Connection implements NetbeansSocket {
     void evt_killed(Parser parsed) {
         NetbeansBuffer buf = this.bset.getbuf_at(parsed.buf_id);
         assert buf != null : "invalid bufId: " + parsed.buf_id + " in killed";
+        buf.unmirror();
         try {
             this.client.event_killed(buf);
         } catch (Throwable e) {
             this.handle_error(e);
         }
+        // The bufID is checked under the request lock by the senders.
+        synchronized (this.request_lock) {
+            this.bset.remove(buf);
+        }
     }
 
     /** Report the cursor position as a byte offset. */
     void evt_newDotAndMark(Parser parsed) {
-        assert parsed.arg_list.length == 2 : "invalid format in newDotAndMark event";
+        assert parsed.argc == 2 : "invalid format in newDotAndMark event";
         NetbeansBuffer buf = this.bset.getbuf_at(parsed.buf_id);
         assert buf != null : "invalid bufId: " + parsed.buf_id + " in newDotAndMark";
-        buf.offset = Integer.parseInt(parsed.arg_list[0]);
-        try {
-            this.client.event_newDotAndMark(buf);
-        } catch (Throwable e) {
-            this.handle_error(e);
-        }
+        final int offset = parsed.int_arg(0);
+        // The position of the offset when the event is received.
+        final int[] position = buf.position(offset);
+        final NetbeansBuffer buffer = buf;
+        final Netbeans nbsock = this;
+        this.deliver(EVT_NEWDOTANDMARK, new Runnable() {
+            public void run() {
+                buffer.offset = offset;
+                if (position != null) {
+                    buffer.lnum = position[0];
+                    buffer.col = position[1];
+                }
+                try {
+                    nbsock.client.event_newDotAndMark(buffer);
+                } catch (Throwable e) {
+                    nbsock.handle_error(e);
+                }
+            }
+        });
     }
 
     /** 'length' bytes of text were deleted in Vim at position 'offset'. */
     void evt_remove(Parser parsed) {
-        assert parsed.arg_list.length == 2 : "invalid format in remove event";
+        assert parsed.argc == 2 : "invalid format in remove event";
         NetbeansBuffer buf = this.bset.getbuf_at(parsed.buf_id);
         assert buf != null : "invalid bufId: " + parsed.buf_id + " in remove";
-        buf.offset = Integer.parseInt(parsed.arg_list[0]);
-        int length = Integer.parseInt(parsed.arg_list[1]);
+        int offset = parsed.int_arg(0);
+        int length = parsed.int_arg(1);
+        if (buf.mirrored() && ! buf.remove(offset, length)) {
+            logger.warning("remove event out of the mirror of " + buf.pathname);
+            this.sync_text(buf);
+        }
+        if (this.coalesce_window >= 0) {
+            this.coalesce(EVT_REMOVE, buf, offset, null, length);
+            return;
+        }
+        buf.set_offset(offset);
         try {
             this.client.event_remove(buf, length);
         } catch (Throwable e) {
@@ -399,6 +885,23 @@ class Netbeans extends Connection implements NetbeansSocket {
     }
 
     void handle_tick() {
+        if (this.executor == null) {
+            this.run_tick();
+            return;
+        }
+        // Do not queue a tick while the previous one has not run yet.
+        if (! this.tick_pending.compareAndSet(false, true))
+            return;
+        final Netbeans nbsock = this;
+        this.executor.execute(new Runnable() {
+            public void run() {
+                nbsock.tick_pending.set(false);
+                nbsock.run_tick();
+            }
+        });
+    }
+
+    void run_tick() {
         try {
             this.client.event_tick();
         } catch (Throwable e) {
@@ -416,7 +919,7 @@ class Netbeans extends Connection implements NetbeansSocket {
     }
 
     public void send_cmd(NetbeansBuffer buf, String cmd, String args) {
-        this.send_request("{0}:{1}!{2}{3}{4}", buf, cmd, args);
+        this.send_request('!', buf, cmd, args, null);
     }
 
     /** Send a function call to Vim. */
@@ -425,30 +928,236 @@ class Netbeans extends Connection implements NetbeansSocket {
     }
 
     public void send_function(NetbeansBuffer buf, String function, String args, Observer observer) {
-        this.send_request("{0}:{1}/{2}{3}{4}", buf, function, args);
-        NetbeansFunction func = new NetbeansFunction(this.seqno);
-        func.addObserver(observer);
-        this.observer_fifo.add(func);
+        final Netbeans nbsock = this;
+        final NetbeansObservable reply = new NetbeansObservable();
+        reply.addObserver(observer);
+        // No timeout: the observer gets the reply whenever it is received.
+        this.call(buf, function, args, 0).thenAccept(new Consumer<String[]>() {
+            public void accept(String[] arg) {
+                try {
+                    reply.notifyObservers(arg);
+                } catch (Throwable e) {
+                    nbsock.handle_error(e);
+                }
+            }
+        });
     }
 
-    /** Send a netbeans function or command. */
-    void send_request(String fmt, NetbeansBuffer buf, String request, String args) {
-        this.seqno += 1;
-        int buf_id = 0;
-        if (buf != null)
-            buf_id = buf.buf_id;
-        String space = " ";
-        if (args.equals(""))
-            space = "";
-        Object[] prm = {new Long(buf_id), request, new Long(this.seqno), space, args};
-        String msg = MessageFormat.format(fmt, prm);
-
-        if (this.ready) {
-            this.send(msg + '\n');
-            logger.finest(this.toString() + " " + msg);
+    public CompletableFuture<String[]> call(NetbeansBuffer buf, String function, String args) {
+        return this.call(buf, function, args, this.call_timeout);
+    }
+
+    public CompletableFuture<String[]> call(NetbeansBuffer buf,
+                                String function, String args, long timeout) {
+        final PendingCall call = new PendingCall(function);
+        if (! this.send_request('/', buf, function, args, call)) {
+            call.future.completeExceptionally(new NetbeansException(
+                buf != null && buf.buf_id < 0 ? buf.pathname + " has been killed"
+                                              : "Netbeans session not ready"));
+            return call.future;
         }
-        else
-            logger.info("error in send_request: Netbeans session not ready");
+        if (timeout > 0) {
+            final Netbeans nbsock = this;
+            call.timeout = this.schedule(timeout, new Runnable() {
+                public void run() { nbsock.expire_call(call); }
+            });
+        }
+        return call.future;
+    }
+
+    /** Complete exceptionally a call whose reply has not been received. */
+    void expire_call(PendingCall call) {
+        synchronized (this.request_lock) {
+            if (this.pending.get(call.seqno) != call)
+                return;
+            this.pending.remove(call.seqno);
+        }
+        call.future.completeExceptionally(
+                new TimeoutException("no reply to " + call));
+    }
+
+    /**
+     * Send a netbeans function or command.
+     *
+     * <p> The request is written as 'bufID:name!seqno args' for a command
+     * and 'bufID:name/seqno args' for a function, in a StringBuilder reused
+     * by all the requests of the connection. The seqno is allocated, the
+     * function call is registered in the pending table and the request is
+     * queued for output atomically, so that a reply cannot be received
+     * before its call is registered.
+     *
+     * @param separator '!' for a command or '/' for a function
+     * @param buf       the buffer, may be null
+     * @param request   the command or function name
+     * @param args      the arguments
+     * @param call      the function call, null for a command
+     * @return false when the session is not ready or the buffer has been
+     *         killed
+     */
+    boolean send_request(char separator, NetbeansBuffer buf, String request,
+                                                String args, PendingCall call) {
+        // Apply the send policy before taking the lock, a blocked sender
+        // must not block the select loop.
+        if (! this.writable)
+            this.apply_send_policy();
+
+        String msg = null;
+        synchronized (this.request_lock) {
+            // A killed buffer is removed under the request lock.
+            int buf_id = buf != null ? buf.buf_id : 0;
+            if (buf_id < 0) {
+                logger.info("error in send_request: " + buf.pathname
+                                                    + " has been killed");
+                return false;
+            }
+            this.seqno += 1;
+            if (! this.ready) {
+                logger.info("error in send_request: Netbeans session not ready");
+                return false;
+            }
+            StringBuilder sb = this.request;
+            sb.setLength(0);
+            append_request(sb, separator, buf_id, request, this.seqno, args);
+            msg = sb.toString();
+            // Do not keep the capacity of a large request.
+            if (sb.capacity() > REQUEST_CAPACITY)
+                this.request = new StringBuilder(REQUEST_CAPACITY);
+
+            if (call != null) {
+                call.seqno = this.seqno;
+                this.pending.put(this.seqno, call);
+            }
+            this.enqueue(msg);
+        }
+        if (this.metrics != null)
+            this.metrics.command(request);
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest(this.toString() + " " + msg.substring(0, msg.length() - 1));
+        return true;
+    }
+
+    /** Append a newline terminated request to <code>sb</code>. */
+    static void append_request(StringBuilder sb, char separator,
+            int buf_id, String request, int seqno, String args) {
+        sb.append(buf_id).append(':').append(request)
+            .append(separator).append(seqno);
+        if (args.length() != 0)
+            sb.append(' ').append(args);
+        sb.append('\n');
+    }
+
+    public NetbeansBatch batch() {
+        return new Batch();
+    }
+
+    public NetbeansSocket[] get_sessions() {
+        return this.server.get_sessions();
+    }
+
+    public int broadcast(String cmd, String args) {
+        return this.server.broadcast(null, cmd, args);
+    }
+
+    public int broadcast(String pathname, String cmd, String args) {
+        return this.server.broadcast(pathname, cmd, args);
+    }
+
+    /**
+     * Queue a serialized command shared by the sessions of a broadcast,
+     * without blocking.
+     *
+     * <p> When <code>buf</code> is not null, <code>msg</code> is the command
+     * after the bufID and the bufID is read under the request lock, the lock
+     * that serializes the removal of a killed buffer.
+     *
+     * @param buf   the buffer, may be null
+     * @param cmd   the command name
+     * @param msg   the serialized command
+     * @return false when the session is not ready, the buffer has been
+     *         killed or the command has been dropped by the fail send policy
+     */
+    boolean send_shared(NetbeansBuffer buf, String cmd, String msg) {
+        if (! this.writable && this.send_policy == SEND_FAIL)
+            return false;
+        synchronized (this.request_lock) {
+            if (! this.ready)
+                return false;
+            if (buf != null) {
+                int buf_id = buf.buf_id;
+                if (buf_id <= 0)
+                    return false;
+                msg = buf_id + msg;
+            }
+            this.enqueue(msg);
+        }
+        if (this.metrics != null)
+            this.metrics.command(cmd);
+        return true;
+    }
+
+    /**
+     * Send the requests of a batch as a single string, and schedule the
+     * timeouts of its function calls.
+     *
+     * @return false when the session is not ready
+     */
+    boolean send_batch(Batch batch) {
+        if (! this.writable)
+            this.apply_send_policy();
+
+        String msg = null;
+        ArrayList<Request> killed = new ArrayList<Request>();
+        synchronized (this.request_lock) {
+            if (! this.ready) {
+                logger.info("error in send_batch: Netbeans session not ready");
+                return false;
+            }
+            StringBuilder sb = new StringBuilder(batch.requests.size() * 32);
+            for (int i = 0; i < batch.requests.size(); i++) {
+                Request request = batch.requests.get(i);
+                // Drop the requests on a killed buffer.
+                int buf_id = request.buf != null ? request.buf.buf_id : 0;
+                if (buf_id < 0) {
+                    killed.add(request);
+                    continue;
+                }
+                this.seqno += 1;
+                append_request(sb, request.separator, buf_id,
+                                request.name, this.seqno, request.args);
+                if (this.metrics != null)
+                    this.metrics.command(request.name);
+                if (request.call != null) {
+                    request.call.seqno = this.seqno;
+                    this.pending.put(this.seqno, request.call);
+                }
+            }
+            msg = sb.toString();
+            this.enqueue(msg);
+        }
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest(this.toString() + " batch of "
+                                + batch.requests.size() + ":\n" + msg);
+        for (int i = 0; i < killed.size(); i++) {
+            Request request = killed.get(i);
+            logger.info("error in send_batch: " + request.buf.pathname
+                                                    + " has been killed");
+            if (request.call != null)
+                request.call.future.completeExceptionally(new NetbeansException(
+                                    request.buf.pathname + " has been killed"));
+        }
+
+        if (this.call_timeout > 0) {
+            for (int i = 0; i < batch.requests.size(); i++) {
+                final PendingCall call = batch.requests.get(i).call;
+                if (call == null || call.future.isDone())
+                    continue;
+                final Netbeans nbsock = this;
+                call.timeout = this.schedule(this.call_timeout, new Runnable() {
+                    public void run() { nbsock.expire_call(call); }
+                });
+            }
+        }
+        return true;
     }
 
     /** Escape special characters in string.*/
@@ -458,89 +1167,171 @@ class Netbeans extends Connection implements NetbeansSocket {
         if (c == '\t') return "\\t";
         if (c == '\r') return "\\r";
         if (c == '\\') return "\\\\";
-        assert false: "regex and escape_char don't match";
-        return "";
+        return null;
     }
 
     /** Quote 'msg' and escape special characters. */
     public String quote(String text) {
-        String result = "";
+        int len = text.length();
         int i = 0;
-        Matcher matcher = re_escape.matcher(text);
-        if (matcher.find(0)) {
-            do {
-                int j = matcher.start();
-                if (j != 0)
-                    result += text.substring(i, j);
-                result += escape_char(text.charAt(j));
-                i = j + 1;
-            } while (matcher.find());
+        while (i < len && escape_char(text.charAt(i)) == null)
+            i++;
+        if (i == len)
+            return "\"" + text + "\"";
+
+        StringBuilder sb = new StringBuilder(len + 16);
+        sb.append('"').append(text, 0, i);
+        for (; i < len; i++) {
+            char c = text.charAt(i);
+            String escaped = escape_char(c);
+            if (escaped == null)
+                sb.append(c);
+            else
+                sb.append(escaped);
         }
-        result += text.substring(i);
-        return "\"" + result + "\"";
+        return sb.append('"').toString();
     }
 
     /** Remove escape on special characters in quoted string. */
-    static String unescape_char(String escaped) {
-        if (escaped.equals("\\\"")) return  "\"";
-        if (escaped.equals("\\n")) return "\n";
-        if (escaped.equals("\\t")) return "\t";
-        if (escaped.equals("\\r")) return "\r";
-        if (escaped.equals("\\\\")) return "\\";
-        assert false: "regex and unescape_char don't match";
-        return "";
+    static char unescape_char(char c) {
+        if (c == '"') return '"';
+        if (c == 'n') return '\n';
+        if (c == 't') return '\t';
+        if (c == 'r') return '\r';
+        if (c == '\\') return '\\';
+        return 0;
     }
 
     /** Remove escapes from escaped characters in a quoted string. */
     static String unquote(String text) {
-        String result = "";
-        int i = 0;
-        Matcher matcher = re_unescape.matcher(text);
-        if (matcher.find(0)) {
-            do {
-                int j = matcher.start();
-                if (j != 0)
-                    result += text.substring(i, j);
-                result += unescape_char(text.substring(j, j+2));
-                i = j + 2;
-            } while (matcher.find());
+        int i = text.indexOf('\\');
+        if (i == -1)
+            return text;
+        return unquote(text, 0, text.length());
+    }
+
+    /** Remove escapes from the range [start, end[ of <code>text</code>. */
+    static String unquote(String text, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                char unescaped = unescape_char(text.charAt(i + 1));
+                if (unescaped != 0) {
+                    sb.append(unescaped);
+                    i++;
+                    continue;
+                }
+            }
+            sb.append(c);
         }
-        result += text.substring(i);
-        return result;
+        return sb.toString();
     }
 
     /** Split a string including quoted parts. */
     public String[] split_quoted_string(String text) {
         ArrayList result = new ArrayList();
-        Matcher matcher = re_token_split.matcher(text);
-        if (matcher.find(0)) {
-            do {
-                String s = matcher.group(1);
-                if (s != null)
-                    s = this.unquote(s);
-                else
-                    s = matcher.group(2);
-                result.add(s);
-            } while (matcher.find());
+        int len = text.length();
+        int i = 0;
+        while (true) {
+            while (i < len && is_space(text.charAt(i)))
+                i++;
+            if (i == len)
+                break;
+
+            // A quoted token ends at the first unescaped double quote or,
+            // when there is none, at the last escaped one.
+            if (text.charAt(i) == '"') {
+                int close = -1;
+                int escaped = -1;
+                int j = i + 1;
+                while (j < len) {
+                    char c = text.charAt(j);
+                    if (c == '\\' && j + 1 < len && text.charAt(j + 1) == '"') {
+                        escaped = j + 1;
+                        j += 2;
+                    } else if (c == '"') {
+                        close = j;
+                        break;
+                    } else
+                        j++;
+                }
+                if (close == -1)
+                    close = escaped;
+                if (close > i + 1) {
+                    result.add(unquote(text, i + 1, close));
+                    i = close + 1;
+                } else
+                    // Not a quoted token: skip the double quote.
+                    i++;
+                continue;
+            }
+
+            int j = i;
+            while (j < len && text.charAt(j) != ' ' && text.charAt(j) != '"')
+                j++;
+            result.add(text.substring(i, j));
+            i = j;
         }
-        return (String[]) result.toArray(new String[1]);
+        return (String[]) result.toArray(new String[result.size()]);
     }
 
-    /** Start the server. */
+    /**
+     * Start the servers.
+     *
+     * <p> All the servers share the select loop, the worker Reactors and the
+     * buffer pools of the JVM.
+     */
     public static void main(String[] args) throws IOException,
-                            ClassNotFoundException, IllegalAccessException {
-        Properties props = new Properties();
-        URL url = ClassLoader.getSystemResource("vimoir.properties");
-        if (url != null) {
-            InputStream f = url.openStream();
-            props.load(f);
-            f.close();
-        }
-
-        // Invoke the main() method of the client class.
-        String name = props.getProperty("vimoir.netbeans.java.client",
-                                                    "vimoir.examples.Phonemic");
-        Class clazz = Class.forName(name);
+            ClassNotFoundException, IllegalAccessException, NoSuchMethodException {
+        Config config = Config.load(Config.find());
+        Properties props = config.props;
+
+        // One Config per server.
+        String[] names = config.servers();
+        Config[] configs = { config };
+        if (names.length > 0) {
+            configs = new Config[names.length];
+            for (int i = 0; i < names.length; i++)
+                configs[i] = Config.load(config.url, names[i]);
+        }
+
+        // Invoke the main() method of each client class.
+        ArrayList classes = new ArrayList();
+        for (int i = 0; i < configs.length; i++) {
+            Class clazz = configs[i].constructor.getDeclaringClass();
+            if (classes.contains(clazz))
+                continue;
+            classes.add(clazz);
+            invoke_main(clazz, args);
+        }
+
+        Reactor.resolution = Long.parseLong(props.getProperty(
+                                    "vimoir.netbeans.timeout", "20"));
+        for (int i = 0; i < configs.length; i++)
+            start_server(configs[i]);
+
+        Dispatcher.event_driven = Boolean.valueOf(props.getProperty(
+                        "vimoir.netbeans.event_driven", "false")).booleanValue();
+        int workers = Integer.parseInt(props.getProperty(
+                                    "vimoir.netbeans.workers", "0"));
+        int balance = Reactor.ROUND_ROBIN;
+        if (props.getProperty("vimoir.netbeans.balance",
+                                "round_robin").equals("least_loaded"))
+            balance = Reactor.LEAST_LOADED;
+        if (workers > 0)
+            Reactor.startWorkers(workers, balance);
+        Dispatcher.loop();
+        Reactor.joinWorkers();
+        SerialExecutor.shutdown(5000);
+
+        // Terminate all Phonemic threads by exiting.
+        logger.info("Terminated.");
+        System.exit(0);
+    }
+
+    /** Invoke the main() method of a client class when it has one. */
+    static void invoke_main(Class clazz, String[] args) throws IllegalAccessException {
         Class[] parameterTypes = { args.getClass() };
         Object[] parameters = { args };
         try {
@@ -558,124 +1349,505 @@ class Netbeans extends Connection implements NetbeansSocket {
         } catch (NoSuchMethodException e) {
             // ignore
         }
+    }
 
+    /** Start a server listening on the port of its Config. */
+    static Server start_server(Config config) throws IOException {
+        Properties props = config.props;
         String host = props.getProperty("vimoir.netbeans.host", "");
-        if (host == "")
+        if (host.equals(""))
             host = null;
-        new Server(host, Integer.parseInt(props.getProperty(
+        Server server = new Server(config, host, Integer.parseInt(props.getProperty(
                                     "vimoir.netbeans.port", "3219")));
-        long user_interval = Long.parseLong(props.getProperty(
-                                    "vimoir.netbeans.user_interval", "200"));
-        long timeout = Long.parseLong(props.getProperty(
-                                    "vimoir.netbeans.timeout", "20"));
-        Dispatcher.loop(user_interval, timeout);
-
-        // Terminate all Phonemic threads by exiting.
-        logger.info("Terminated.");
-        System.exit(0);
+        if (Boolean.valueOf(props.getProperty(
+                        "vimoir.netbeans.reload", "false")).booleanValue())
+            server.watch_config();
+        if (Boolean.valueOf(props.getProperty(
+                        "vimoir.netbeans.jmx", "false")).booleanValue())
+            server.register_mbean();
+        server.setAdmission(
+            Integer.parseInt(props.getProperty(
+                                    "vimoir.netbeans.max_sessions", "0")),
+            Double.parseDouble(props.getProperty(
+                                    "vimoir.netbeans.accept_rate", "0")),
+            Double.parseDouble(props.getProperty(
+                                    "vimoir.netbeans.accept_burst", "10")),
+            Long.parseLong(props.getProperty(
+                                    "vimoir.netbeans.handshake_timeout", "0")));
+        if (config.name != null)
+            logger.info("server " + config.name + " on port "
+                + props.getProperty("vimoir.netbeans.port", "3219") + ": "
+                + config.constructor.getDeclaringClass().getName());
+        return server;
     }
 
-    /** Parse a received netbeans message. */
+    /**
+     * Parse a received netbeans message.
+     *
+     * <p> The message is parsed in a single pass over its characters. The
+     * arguments are recorded as offsets in the message and the numeric ones
+     * are decoded in place, so that the only strings allocated are the
+     * netbeans string and the name of an unknown event. A Parser is reused
+     * for all the messages of a connection.
+     */
     class Parser {
+        String msg;
         boolean is_event = false;
         int buf_id = 0;
         String event = "";
         int  seqno = 0;
         String nbstring = "";
-        String[] arg_list = {};
-
-        Parser(String msg) throws NetbeansException {
-            String args = "";
-            Matcher matcher = re_event.matcher(msg);
-            if(matcher.matches()) {
-                this.is_event = true;
-                this.buf_id = Integer.parseInt(matcher.group(1));
-                this.event = matcher.group(2);
-                this.seqno = Integer.parseInt(matcher.group(3));
-                args = matcher.group(4);
-            } else {
-                matcher = re_response.matcher(msg);
-                if(matcher.matches()) {
-                    this.seqno = Integer.parseInt(matcher.group(1));
-                    args = matcher.group(2);
-                }
-                else
-                    throw new NetbeansException("discarding invalid netbeans message: " + msg);
+        /** The number of arguments and their offsets in the message. */
+        int argc = 0;
+        int[] arg_start = new int[4];
+        int[] arg_end = new int[4];
+
+        /** Parse <code>msg</code> and return this Parser. */
+        Parser parse(String msg) throws NetbeansException {
+            this.msg = msg;
+            this.is_event = false;
+            this.buf_id = 0;
+            this.event = "";
+            this.seqno = 0;
+            this.nbstring = "";
+            this.argc = 0;
+
+            // Event: 'bufID:name=seqno args', reply: 'seqno args'.
+            int len = msg.length();
+            int i = skip_spaces(0);
+            int digits = skip_digits(i);
+            if (digits == i)
+                throw new NetbeansException("discarding invalid netbeans message: " + msg);
+            int pos = -1;
+            if (digits < len && msg.charAt(digits) == ':')
+                pos = this.parse_event(i, digits);
+            if (pos == -1) {
+                this.seqno = this.number(i, digits);
+                pos = digits;
             }
+            pos = skip_spaces(pos);
 
             // The quoted string is last in an 'insert' event.
-            if (this.event.equals("insert")) {
-                if (args.length() == 0)
-                    throw new NetbeansException("discarding invalid netbeans message: " + msg);
-                int idx = args.indexOf(' ');
-                if (idx == -1)
+            boolean insert = (this.event == EVT_INSERT);
+            if (insert) {
+                int idx = msg.indexOf(' ', pos);
+                if (pos == len || idx == -1)
                     throw new NetbeansException("discarding invalid netbeans message: " + msg);
-                String[] list = { args.substring(0, idx) };
-                this.arg_list = list; // hmmmm java... ;-)
-                args = args.substring(idx + 1);
+                this.add_arg(pos, idx);
+                pos = idx + 1;
             }
 
             // a netbeans string
-            int end = -1;
-            if (args.length() != 0 && args.charAt(0) == '"') {
-                end = args.lastIndexOf("\"");
-                if (end != -1 && end != 0) {
-                    this.nbstring = args.substring(1, end);
+            if (pos < len && msg.charAt(pos) == '"') {
+                int end = msg.lastIndexOf('"');
+                if (end > pos) {
+                    this.nbstring = msg.substring(pos + 1, end);
                     // Do not unquote nbkey parameter twice since vim already
                     // parses function parameters as strings (see :help
                     // expr-quote).
-                    if (! (this.event.equals("keyAtPos") || this.event.equals("keyCommand"))) {
+                    if (! (this.event == EVT_KEYATPOS || this.event == EVT_KEYCOMMAND))
                         this.nbstring = unquote(this.nbstring);
-                    }
+                    pos = end + 1;
+                }
+            }
+
+            // The space separated arguments, an empty one when there is none.
+            if (! insert) {
+                pos = skip_spaces(pos);
+                if (pos == len)
+                    this.add_arg(pos, pos);
+                while (pos < len) {
+                    int end = pos;
+                    while (end < len && ! is_space(msg.charAt(end)))
+                        end++;
+                    this.add_arg(pos, end);
+                    pos = skip_spaces(end);
                 }
-                else
-                    end = -1;
             }
+            return this;
+        }
+
+        /**
+         * Parse the 'name=seqno' part of an event whose bufID is in the
+         * range [start, colon[, and return the position following the
+         * seqno, or -1 when this is not an event.
+         */
+        int parse_event(int start, int colon) throws NetbeansException {
+            String msg = this.msg;
+            int name = colon + 1;
+            int end = name;
+            while (end < msg.length() && ! is_space(msg.charAt(end)))
+                end++;
+            // The name ends at the last '=' followed by a digit.
+            int equal = end - 1;
+            while (equal > name && ! (msg.charAt(equal) == '='
+                        && equal + 1 < end && is_digit(msg.charAt(equal + 1))))
+                equal--;
+            if (equal <= name)
+                return -1;
+            int digits = skip_digits(equal + 1);
+            this.is_event = true;
+            this.buf_id = this.number(start, colon);
+            this.event = event_name(msg, name, equal);
+            this.seqno = this.number(equal + 1, digits);
+            return digits;
+        }
+
+        void add_arg(int start, int end) {
+            if (this.argc == this.arg_start.length) {
+                int[] starts = new int[this.argc * 2];
+                int[] ends = new int[this.argc * 2];
+                System.arraycopy(this.arg_start, 0, starts, 0, this.argc);
+                System.arraycopy(this.arg_end, 0, ends, 0, this.argc);
+                this.arg_start = starts;
+                this.arg_end = ends;
+            }
+            this.arg_start[this.argc] = start;
+            this.arg_end[this.argc] = end;
+            this.argc++;
+        }
 
-            if (! this.event.equals("insert"))
-                this.arg_list = args.substring(end+1).trim().split("\\s+");
+        /** Return the argument at index <code>i</code>. */
+        String arg(int i) {
+            return this.msg.substring(this.arg_start[i], this.arg_end[i]);
         }
+
+        /** Return the numeric argument at index <code>i</code>. */
+        int int_arg(int i) {
+            return this.number(this.arg_start[i], this.arg_end[i]);
+        }
+
+        /** Return a new array of the arguments. */
+        String[] arg_list() {
+            String[] list = new String[this.argc];
+            for (int i = 0; i < this.argc; i++)
+                list[i] = this.arg(i);
+            return list;
+        }
+
+        /** Decode the integer in the range [start, end[ of the message. */
+        int number(int start, int end) {
+            String msg = this.msg;
+            int i = start;
+            boolean negative = (i < end && msg.charAt(i) == '-');
+            if (negative)
+                i++;
+            if (i == end)
+                throw new NumberFormatException("For input string: \""
+                                    + msg.substring(start, end) + "\"");
+            long value = 0;
+            for (; i < end; i++) {
+                char c = msg.charAt(i);
+                if (! is_digit(c) || value > Integer.MAX_VALUE)
+                    throw new NumberFormatException("For input string: \""
+                                    + msg.substring(start, end) + "\"");
+                value = value * 10 + (c - '0');
+            }
+            if (negative)
+                value = - value;
+            if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+                throw new NumberFormatException("For input string: \""
+                                    + msg.substring(start, end) + "\"");
+            return (int) value;
+        }
+
+        int skip_spaces(int i) {
+            while (i < this.msg.length() && is_space(this.msg.charAt(i)))
+                i++;
+            return i;
+        }
+
+        int skip_digits(int i) {
+            while (i < this.msg.length() && is_digit(this.msg.charAt(i)))
+                i++;
+            return i;
+        }
+    }
+
+    static boolean is_space(char c) {
+        return (c == ' ' || c == '\t' || c == '\n'
+                || c == '\u000B' || c == '\f' || c == '\r');
+    }
+
+    static boolean is_digit(char c) {
+        return (c >= '0' && c <= '9');
+    }
+
+    /** Return the hash of the range [start, end[ of a string. */
+    static int event_hash(String str, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + str.charAt(i);
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Build the EVENTS hash table, with linear probing. */
+    static String[] event_table() {
+        String[] table = new String[64];
+        for (int i = 0; i < EVENTS.length; i++) {
+            String name = EVENTS[i];
+            int index = event_hash(name, 0, name.length()) & (table.length - 1);
+            while (table[index] != null)
+                index = (index + 1) & (table.length - 1);
+            table[index] = name;
+        }
+        return table;
+    }
+
+    /** Return true when <code>name</code> is the name of an event. */
+    static boolean known_event(String name) {
+        String[] table = EVENT_TABLE;
+        int index = event_hash(name, 0, name.length()) & (table.length - 1);
+        for (String entry; (entry = table[index]) != null;
+                                    index = (index + 1) & (table.length - 1)) {
+            if (entry.equals(name))
+                return true;
+        }
+        return false;
     }
 
     /**
-     * A container for a list and map of buffers.
+     * Return the interned constant of the event name in the range
+     * [start, end[ of <code>msg</code>, or a new string when the event is
+     * unknown.
      *
-     * <p> A NetbeansBuffer instance is never removed from BufferSet.
+     * <p> The name is looked up in a hash table without extracting it from
+     * the message.
      */
-    class BufferSet {
-        ArrayList buf_list = new ArrayList();
-        HashMap dict = new HashMap();
+    static String event_name(String msg, int start, int end) {
+        int len = end - start;
+        String[] table = EVENT_TABLE;
+        int index = event_hash(msg, start, end) & (table.length - 1);
+        for (String name; (name = table[index]) != null;
+                                    index = (index + 1) & (table.length - 1)) {
+            if (name.length() == len && msg.regionMatches(start, name, 0, len))
+                return name;
+        }
+        return msg.substring(start, end);
+    }
 
-        /** Return the buffer at index buf_id in the list. */
-        synchronized NetbeansBuffer getbuf_at(int buf_id) {
-            if (buf_id <= 0 || buf_id > this.buf_list.size())
+    /**
+     * A container for an array and map of buffers.
+     *
+     * <p> The buffers are looked up without locking: by bufID in an array
+     * that is replaced on each change (copy-on-write), and by pathname in a
+     * ConcurrentHashMap. The changes are serialized by the BufferSet lock,
+     * they only occur on fileOpened, get_buffer and killed.
+     *
+     * <p> A killed buffer is removed and its bufID is reused by a new buffer,
+     * the lowest free bufID first, so that the array does not grow beyond the
+     * largest number of buffers alive at the same time. Vim forgets the bufID
+     * of a killed buffer and the new buffer is registered again with
+     * putBufferNumber. The removed NetbeansBuffer instance gets a bufID of -1
+     * so that a client holding it cannot send a command to the new buffer.
+     */
+    static class BufferSet {
+        volatile NetbeansBuffer[] buf_list = new NetbeansBuffer[0];
+        ConcurrentHashMap<String, NetbeansBuffer> dict =
+                                    new ConcurrentHashMap<String, NetbeansBuffer>();
+        /** The free indexes of buf_list, guarded by the BufferSet lock. */
+        BitSet free = new BitSet();
+
+        /** Return the buffer at index buf_id in the array. */
+        NetbeansBuffer getbuf_at(int buf_id) {
+            NetbeansBuffer[] list = this.buf_list;
+            if (buf_id <= 0 || buf_id > list.length)
                 return null;
-            return (NetbeansBuffer) this.buf_list.get(buf_id - 1);
+            return list[buf_id - 1];
         }
 
         /** Get the buffer with pathname as key, instantiate one when not found. */
-        synchronized NetbeansBuffer get(String pathname)
+        NetbeansBuffer get(String pathname)
                                         throws NetbeansInvalidPathnameException {
-            if (! this.dict.containsKey(pathname)) {
-                NetbeansBuffer buf = new NetbeansBuffer(pathname,
-                                this.buf_list.size() + 1);
-                this.buf_list.add(buf);
+            NetbeansBuffer buf = this.dict.get(pathname);
+            if (buf != null)
+                return buf;
+            synchronized (this) {
+                buf = this.dict.get(pathname);
+                if (buf != null)
+                    return buf;
+                int index = this.free.nextSetBit(0);
+                if (index < 0)
+                    index = this.buf_list.length;
+                buf = new NetbeansBuffer(pathname, index + 1);
+
+                NetbeansBuffer[] list = Arrays.copyOf(
+                    this.buf_list, Math.max(index + 1, this.buf_list.length));
+                list[index] = buf;
+                this.free.clear(index);
+                this.buf_list = list;
                 this.dict.put(pathname, buf);
+                return buf;
             }
-            return (NetbeansBuffer) this.dict.get(pathname);
         }
-    }
 
-    /** A Netbeans function reply Observable. */
-    class NetbeansFunction extends Observable {
-        int seqno;
+        /** Remove a killed buffer and free its bufID. */
+        synchronized void remove(NetbeansBuffer buf) {
+            int index = buf.buf_id - 1;
+            NetbeansBuffer[] list = this.buf_list;
+            if (index < 0 || index >= list.length || list[index] != buf)
+                return;
+            this.dict.remove(buf.pathname, buf);
+            buf.buf_id = -1;
+
+            // Drop the free indexes at the end of the array.
+            int size = index;
+            if (index < list.length - 1) {
+                this.free.set(index);
+                size = list.length;
+            } else {
+                while (size > 0 && this.free.get(size - 1))
+                    size--;
+                this.free.clear(size, index + 1);
+            }
+            list = Arrays.copyOf(list, size);
+            if (size > index)
+                list[index] = null;
+            this.buf_list = list;
+        }
 
-        NetbeansFunction(int seqno) { this.seqno = seqno; }
+        /** Return the buffer of pathname, null when not found. */
+        NetbeansBuffer find(String pathname) {
+            return this.dict.get(pathname);
+        }
 
+        /** Return the buffers. */
+        NetbeansBuffer[] buffers() {
+            NetbeansBuffer[] list = this.buf_list;
+            int count = 0;
+            for (int i = 0; i < list.length; i++) {
+                if (list[i] != null)
+                    count++;
+            }
+            NetbeansBuffer[] result = new NetbeansBuffer[count];
+            count = 0;
+            for (int i = 0; i < list.length; i++) {
+                if (list[i] != null)
+                    result[count++] = list[i];
+            }
+            return result;
+        }
+    }
+
+    /** An Observable that notifies its observers on each notifyObservers. */
+    class NetbeansObservable extends Observable {
         public void notifyObservers(Object arg) {
             this.setChanged();
             super.notifyObservers(arg);
         }
     }
+
+    /** An insert or remove edit coalesced from contiguous events. */
+    static class Edit {
+        String event;
+        NetbeansBuffer buf;
+        int offset;
+        StringBuilder text = null;
+        int length;
+        /** The System.nanoTime of the last event merged into the edit. */
+        long last;
+
+        Edit(String event, NetbeansBuffer buf, int offset, String text, int length) {
+            this.event = event;
+            this.buf = buf;
+            this.offset = offset;
+            if (text != null)
+                this.text = new StringBuilder(text);
+            this.length = length;
+            this.last = System.nanoTime();
+        }
+    }
+
+    /** A request of a Batch. */
+    static class Request {
+        char separator;
+        NetbeansBuffer buf;
+        String name;
+        String args;
+        PendingCall call;
+
+        Request(char separator, NetbeansBuffer buf, String name,
+                                            String args, PendingCall call) {
+            this.separator = separator;
+            this.buf = buf;
+            this.name = name;
+            this.args = args;
+            this.call = call;
+        }
+    }
+
+    /** A batch of requests sent in one write. */
+    class Batch implements NetbeansBatch {
+        ArrayList<Request> requests = new ArrayList<Request>();
+
+        public NetbeansBatch send_cmd(NetbeansBuffer buf, String cmd) {
+            return this.send_cmd(buf, cmd, "");
+        }
+
+        public NetbeansBatch send_cmd(NetbeansBuffer buf, String cmd, String args) {
+            this.requests.add(new Request('!', buf, cmd, args, null));
+            return this;
+        }
+
+        public CompletableFuture<String[]> call(NetbeansBuffer buf,
+                                            String function, String args) {
+            PendingCall call = new PendingCall(function);
+            this.requests.add(new Request('/', buf, function, args, call));
+            return call.future;
+        }
+
+        public int size() {
+            return this.requests.size();
+        }
+
+        public CompletableFuture<String[][]> flush() {
+            ArrayList<CompletableFuture<String[]>> calls =
+                                new ArrayList<CompletableFuture<String[]>>();
+            for (int i = 0; i < this.requests.size(); i++) {
+                PendingCall call = this.requests.get(i).call;
+                if (call != null)
+                    calls.add(call.future);
+            }
+            final CompletableFuture<?>[] futures =
+                        calls.toArray(new CompletableFuture<?>[calls.size()]);
+
+            if (this.requests.size() != 0 && ! send_batch(this)) {
+                for (int i = 0; i < futures.length; i++)
+                    futures[i].completeExceptionally(
+                        new NetbeansException("Netbeans session not ready"));
+            }
+            this.requests = new ArrayList<Request>();
+
+            return CompletableFuture.allOf(futures).thenApply(
+                                        new Function<Void, String[][]>() {
+                public String[][] apply(Void ignored) {
+                    String[][] replies = new String[futures.length][];
+                    for (int i = 0; i < futures.length; i++)
+                        replies[i] = (String[]) futures[i].join();
+                    return replies;
+                }
+            });
+        }
+    }
+
+    /** A function call waiting for its reply. */
+    static class PendingCall {
+        String function;
+        int seqno = 0;
+        CompletableFuture<String[]> future = new CompletableFuture<String[]>();
+        volatile TimerWheel.Timeout timeout = null;
+
+        PendingCall(String function) { this.function = function; }
+
+        void cancel_timeout() {
+            TimerWheel.Timeout timeout = this.timeout;
+            if (timeout != null)
+                timeout.cancel();
+        }
+
+        public String toString() {
+            return this.function + " (seqno " + this.seqno + ")";
+        }
+    }
 }
 
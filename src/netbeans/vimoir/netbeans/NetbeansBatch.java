@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A batch of netbeans commands and function calls sent in one write.
+ *
+ * <p> A batch is obtained with {@link NetbeansSocket#batch}. The commands
+ * and function calls added to the batch are not sent until the flush method
+ * is invoked, they are then assigned their seqno and written to Vim
+ * contiguously and in order. A batch may be reused after a flush. A batch
+ * is not thread safe and must be used by one thread at a time.
+ *
+ * <p> For example:
+ * <pre>
+ *      NetbeansBatch batch = nbsock.batch();
+ *      for (int i = 0; i &lt; lines.length; i++)
+ *          batch.send_cmd(buf, "addAnno", args[i]);
+ *      batch.call(buf, "getAnno", quoted);
+ *      batch.flush().thenAccept(...);
+ * </pre>
+ */
+public interface NetbeansBatch {
+
+    /**
+     * Add a netbeans command to the batch.
+     *
+     * @param buf   null when the bufID is zero
+     * @param cmd   the command name
+     * @return this batch
+     */
+    public NetbeansBatch send_cmd(NetbeansBuffer buf, String cmd);
+
+    /**
+     * Add a netbeans command to the batch.
+     *
+     * @param buf   null when the bufID is zero
+     * @param cmd   the command name
+     * @param args  the command parameters, use the quote method to quote
+     *              a Netbeans <code>string</code> parameter
+     * @return this batch
+     */
+    public NetbeansBatch send_cmd(NetbeansBuffer buf, String cmd, String args);
+
+    /**
+     * Add a netbeans function call to the batch.
+     *
+     * <p> The returned future completes as the future returned by {@link
+     * NetbeansSocket#call}, after the batch has been flushed.
+     *
+     * @param buf      null when the bufID is zero
+     * @param function the function name
+     * @param args     the function parameters
+     * @return the future of the function reply
+     */
+    public CompletableFuture<String[]> call(NetbeansBuffer buf, String function, String args);
+
+    /**
+     * Return the number of commands and function calls in the batch.
+     *
+     * @return the size of the batch
+     */
+    public int size();
+
+    /**
+     * Send the commands and function calls of the batch in one write and
+     * empty the batch.
+     *
+     * @return a future that completes with the replies of the function
+     * calls of the batch, in the order of the calls, when all of them have
+     * been received, or completes exceptionally when one of them fails
+     */
+    public CompletableFuture<String[][]> flush();
+}
@@ -17,6 +17,7 @@
 package vimoir.netbeans;
 
 import java.io.File;
+import java.nio.charset.Charset;
 
 /**
  * A Vim buffer.
@@ -24,6 +25,20 @@ import java.io.File;
  * <p>A NetbeansBuffer is never directly instantiated by the application. Use
  * the {@link NetbeansSocket#get_buffer} method to access a NetbeansBuffer
  * instance.
+ *
+ * <p>When the <code>vimoir.netbeans.shadow</code> property is true, the
+ * buffer keeps a mirror of the Vim buffer text. The mirror is seeded with a
+ * <code>getText</code> function call at <code>fileOpened</code>, updated by
+ * the insert and remove events and resynchronized periodically. The text
+ * is read locally with the get_text methods without any round trip to Vim.
+ * The offsets of these methods are byte offsets, as the netbeans offsets.
+ *
+ * <p>When the <code>vimoir.netbeans.line_index</code> property is true, the
+ * buffer keeps an index of the lines of the Vim buffer, seeded and updated
+ * in the same way. The lnum and col fields are then set from the offset of
+ * the insert, remove and newDotAndMark events, and the get_lnum, get_col and
+ * get_offset methods convert between offsets and line/column positions in
+ * O(log lines) without any round trip to Vim.
  */
 public class NetbeansBuffer {
     /** The full pathname of this buffer. */
@@ -34,7 +49,17 @@ public class NetbeansBuffer {
     public int lnum = 1;
     /** The column number of the cursor (in bytes, zero based). */
     public int col = 0;
-    int buf_id;
+    /**
+     * The bufID, -1 when the buffer has been killed. It is set to -1 under
+     * the request lock of the session and may be read by any thread.
+     */
+    volatile int buf_id;
+    /** The mirror of the buffer text, null when the text is not mirrored. */
+    Rope text = null;
+    /** The index of the lines, null when the lines are not indexed. */
+    LineIndex lines = null;
+    /** True when the mirrors have been seeded and have not drifted. */
+    boolean synced = false;
 
     NetbeansBuffer(String pathname, int buf_id)
                                     throws NetbeansInvalidPathnameException {
@@ -58,4 +83,220 @@ public class NetbeansBuffer {
     public String toString() {
         return this.get_basename() + ":" + this.lnum + "/" + this.col;
     }
+
+    /**
+     * Return true when the mirror of the buffer text is available.
+     *
+     * @return false when the text is not mirrored, or when the mirror is
+     *         being seeded or resynchronized after a drift
+     */
+    public synchronized boolean has_text() {
+        return this.text != null && this.synced;
+    }
+
+    /**
+     * Return the length of the buffer text in bytes.
+     *
+     * @return the length or -1 when the text is not available
+     */
+    public synchronized int get_length() {
+        if (! this.has_text())
+            return -1;
+        return this.text.length();
+    }
+
+    /**
+     * Return the buffer text.
+     *
+     * @return the text or null when the text is not available
+     */
+    public synchronized String get_text() {
+        if (! this.has_text())
+            return null;
+        return this.text.toString();
+    }
+
+    /**
+     * Return a range of the buffer text.
+     *
+     * @param offset the byte offset of the range
+     * @param length the length of the range in bytes
+     * @return the text or null when the text is not available
+     * @throws IndexOutOfBoundsException when the range is beyond the text
+     */
+    public synchronized String get_text(int offset, int length) {
+        if (! this.has_text())
+            return null;
+        return this.text.get(offset, length);
+    }
+
+    /**
+     * Return true when the index of the lines is available.
+     *
+     * @return false when the lines are not indexed, or when the index is
+     *         being seeded or resynchronized after a drift
+     */
+    public synchronized boolean has_lines() {
+        return this.lines != null && this.synced;
+    }
+
+    /**
+     * Return the line number of a byte offset.
+     *
+     * @param offset the byte offset
+     * @return the line number (first line is one) or -1 when the index of
+     *         the lines is not available
+     * @throws IndexOutOfBoundsException when offset is beyond the text
+     */
+    public synchronized int get_lnum(int offset) {
+        if (! this.has_lines())
+            return -1;
+        return this.lines.line(offset) + 1;
+    }
+
+    /**
+     * Return the column number of a byte offset.
+     *
+     * @param offset the byte offset
+     * @return the column number (in bytes, zero based) or -1 when the index
+     *         of the lines is not available
+     * @throws IndexOutOfBoundsException when offset is beyond the text
+     */
+    public synchronized int get_col(int offset) {
+        if (! this.has_lines())
+            return -1;
+        return offset - this.lines.start(this.lines.line(offset));
+    }
+
+    /**
+     * Return the byte offset of a line/column position.
+     *
+     * @param lnum the line number (first line is one)
+     * @param col  the column number (in bytes, zero based)
+     * @return the byte offset or -1 when the index of the lines is not
+     *         available
+     * @throws IndexOutOfBoundsException when there is no such line
+     */
+    public synchronized int get_offset(int lnum, int col) {
+        if (! this.has_lines())
+            return -1;
+        return this.lines.start(lnum - 1) + col;
+    }
+
+    /**
+     * Return the line number and column number of a byte offset, or null
+     * when the index of the lines is not available or the offset is beyond
+     * the text.
+     */
+    synchronized int[] position(int offset) {
+        if (! this.has_lines() || offset < 0 || offset > this.lines.length())
+            return null;
+        int line = this.lines.line(offset);
+        int[] position = { line + 1, offset - this.lines.start(line) };
+        return position;
+    }
+
+    /** Set the cursor offset, and lnum and col when the lines are indexed. */
+    synchronized void set_offset(int offset) {
+        this.offset = offset;
+        int[] position = this.position(offset);
+        if (position != null) {
+            this.lnum = position[0];
+            this.col = position[1];
+        }
+    }
+
+    /** Return true when the text is mirrored or the lines are indexed. */
+    synchronized boolean mirrored() {
+        return this.text != null || this.lines != null;
+    }
+
+    /**
+     * Start mirroring the text and/or indexing the lines, the mirrors are
+     * not synced until seeded.
+     */
+    synchronized void mirror(Charset charset, boolean text, boolean lines) {
+        if (! this.mirrored())
+            this.synced = false;
+        if (text && this.text == null)
+            this.text = new Rope(charset);
+        if (lines && this.lines == null)
+            this.lines = new LineIndex(charset);
+    }
+
+    /** Stop mirroring the text and indexing the lines. */
+    synchronized void unmirror() {
+        this.text = null;
+        this.lines = null;
+        this.synced = false;
+    }
+
+    /**
+     * Compare the mirrors with the Vim buffer text and reseed them when they
+     * differ. The index of the lines alone is compared by its length and its
+     * number of lines.
+     *
+     * @return false when the mirror had drifted
+     */
+    synchronized boolean resync(String vimtext) {
+        if (! this.mirrored())
+            return true;
+        boolean drift = false;
+        if (this.synced) {
+            if (this.text != null)
+                drift = ! this.text.toString().equals(vimtext);
+            else {
+                LineIndex index = new LineIndex(this.lines.charset);
+                index.set(vimtext);
+                drift = index.length() != this.lines.length()
+                                    || index.lines() != this.lines.lines();
+            }
+        }
+        if (! this.synced || drift) {
+            if (this.text != null)
+                this.text.set(vimtext);
+            if (this.lines != null)
+                this.lines.set(vimtext);
+        }
+        this.synced = true;
+        return ! drift;
+    }
+
+    /**
+     * Apply an insert event to the mirrors.
+     *
+     * @return false when the mirror has drifted
+     */
+    synchronized boolean insert(int offset, String str) {
+        if (! this.mirrored() || ! this.synced)
+            return true;
+        try {
+            if (this.text != null)
+                this.text.insert(offset, str);
+            if (this.lines != null)
+                this.lines.insert(offset, str);
+        } catch (IndexOutOfBoundsException e) {
+            this.synced = false;
+        }
+        return this.synced;
+    }
+
+    /**
+     * Apply a remove event to the mirrors.
+     *
+     * @return false when the mirror has drifted
+     */
+    synchronized boolean remove(int offset, int length) {
+        if (! this.mirrored() || ! this.synced)
+            return true;
+        try {
+            if (this.text != null)
+                this.text.remove(offset, length);
+            if (this.lines != null)
+                this.lines.remove(offset, length);
+        } catch (IndexOutOfBoundsException e) {
+            this.synced = false;
+        }
+        return this.synced;
+    }
 }
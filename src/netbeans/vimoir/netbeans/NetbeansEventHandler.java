@@ -58,6 +58,9 @@ public interface NetbeansEventHandler {
      *
      * <p> A file was deleted or wiped out by the Vim user and the buffer
      * annotations have been removed.  The buffer is not registered anymore.
+     * The buffer is removed when this method returns: the commands sent on
+     * it afterwards are dropped, and a later <code>get_buffer</code> or
+     * <code>fileOpened</code> of the same pathname returns a new buffer.
      *
      * @param buf the buffer
      */
@@ -149,6 +152,9 @@ public interface NetbeansEventHandler {
      * <p> The periodicity of the invocation of this method is defined by the
      * <code>vimoir.netbeans.user_interval</code> property.  See the
      * <code>vimoir.properties</code> file.
+     *
+     * <p> Timer events are not sent to a client that inherits the empty
+     * implementation of this method from {@link NetbeansClient}.
      */
     public void event_tick();
 
@@ -17,6 +17,7 @@
 package vimoir.netbeans;
 
 import java.util.Observer;
+import java.util.concurrent.CompletableFuture;
 
 /** Interface implemented by the Netbeans socket. */
 public interface NetbeansSocket {
@@ -45,6 +46,51 @@ public interface NetbeansSocket {
      */
     public NetbeansBuffer get_buffer(String pathname) throws NetbeansInvalidPathnameException;
 
+    /**
+     * Return the writable state of the socket.
+     *
+     * <p> The socket becomes not writable when the number of characters of
+     * the commands waiting to be written to Vim rises above the
+     * <code>vimoir.netbeans.high_watermark</code> property, and writable
+     * again when it falls below the <code>vimoir.netbeans.low_watermark</code>
+     * property. The watermarks count characters, not encoded bytes: with a
+     * multi-byte encoding the commands may take more bytes on the wire. While the socket is not writable, sending a command is
+     * handled according to the <code>vimoir.netbeans.send_policy</code>
+     * property: the command is queued anyway (<code>queue</code>), the sender
+     * is blocked until the socket becomes writable (<code>block</code>), or
+     * an IllegalStateException is thrown (<code>fail</code>). Commands sent
+     * from the event methods of the client are not blocked when the
+     * <code>vimoir.netbeans.executor</code> property is <code>inline</code>,
+     * as the event methods then run in the thread of the select loop. With
+     * the <code>serial</code> executor, they run in their own thread and are
+     * blocked as any other sender.
+     *
+     * @return false when the output queue is above its high watermark
+     */
+    public boolean is_writable();
+
+    /**
+     * Return the size of the output queue, in characters.
+     *
+     * <p> The size is compared with the watermarks by
+     * {@link #is_writable()}. It is not the number of encoded bytes.
+     *
+     * @return the number of characters of the commands waiting to be written
+     */
+    public long get_output_queue_size();
+
+    /**
+     * Add an observer of the writable state of the socket.
+     *
+     * <p> The <code>arg</code> parameter of the {@link
+     * java.util.Observer#update} method of the observer is a Boolean, the new
+     * writable state. The observer may be invoked from any thread that sends
+     * commands, or from the thread that writes them.
+     *
+     * @param observer the writable state Observer
+     */
+    public void add_writability_observer(Observer observer);
+
     /**
      * Quote a string and escape special characters.
      *
@@ -100,6 +146,12 @@ public interface NetbeansSocket {
      * <code>string</code>, such as with the <code>getText</code> Netbeans
      * function, then the string has been already unquoted by vimoir.
      *
+     * <p> The function call has no timeout, the
+     * <code>vimoir.netbeans.call_timeout</code> property does not apply. The
+     * observer is only notified of the reply: it is not notified when the
+     * session is closed or the buffer killed before the reply is received,
+     * use {@link #call} to handle these cases.
+     *
      * <p> See an example with the {@link vimoir.examples.Phonemic#cmd_length}
      * method.
      *
@@ -119,6 +171,12 @@ public interface NetbeansSocket {
      * <code>string</code>, such as with the <code>getText</code> Netbeans
      * function, then the string has been already unquoted by vimoir.
      *
+     * <p> The function call has no timeout, the
+     * <code>vimoir.netbeans.call_timeout</code> property does not apply. The
+     * observer is only notified of the reply: it is not notified when the
+     * session is closed or the buffer killed before the reply is received,
+     * use {@link #call} to handle these cases.
+     *
      * <p> See an example with the {@link vimoir.examples.Phonemic#cmd_length}
      * method.
      *
@@ -129,4 +187,101 @@ public interface NetbeansSocket {
      * @param observer the function Observer
      */
     public void send_function(NetbeansBuffer buf, String function, String args, Observer observer);
+
+    /**
+     * Call a netbeans function.
+     *
+     * <p> The returned future completes with the Netbeans <code>Reply</code>,
+     * a (possibly empty) String array as with the {@link #send_function}
+     * Observer. It completes exceptionally with a {@link
+     * java.util.concurrent.TimeoutException} when no reply has been received
+     * after the <code>vimoir.netbeans.call_timeout</code> property delay, and
+     * with a {@link NetbeansException} when the session is not ready or is
+     * closed before the reply. A lost reply only fails its own call.
+     *
+     * <p> The replies are matched to the calls by their seqno, so that many
+     * calls may be in flight at the same time, for example:
+     * <pre>
+     *      CompletableFuture[] lengths = new CompletableFuture[bufs.length];
+     *      for (int i = 0; i &lt; bufs.length; i++)
+     *          lengths[i] = nbsock.call(bufs[i], "getLength", "");
+     *      CompletableFuture.allOf(lengths).thenRun(...);
+     * </pre>
+     *
+     * <p> The future is completed in the thread that processes the Netbeans
+     * events, or in the select loop thread on a timeout. Dependent actions
+     * that may block must use the async methods of CompletableFuture.
+     *
+     * @param buf      null when the bufID is zero
+     * @param function the function name
+     * @param args     the function parameters, use the quote method to quote
+     *                 a Netbeans <code>string</code> parameter
+     * @return the future of the function reply
+     */
+    public CompletableFuture<String[]> call(NetbeansBuffer buf, String function, String args);
+
+    /**
+     * Call a netbeans function with a timeout.
+     *
+     * @param buf      null when the bufID is zero
+     * @param function the function name
+     * @param args     the function parameters
+     * @param timeout  the timeout in milliseconds, no timeout when zero
+     * @return the future of the function reply
+     * @see #call(NetbeansBuffer, String, String)
+     */
+    public CompletableFuture<String[]> call(NetbeansBuffer buf, String function, String args, long timeout);
+
+    /**
+     * Return a new batch of commands and function calls.
+     *
+     * <p> The requests added to the batch are sent in one write when the
+     * batch is flushed, use a batch to send many commands in a row, for
+     * example when defining annotations or opening many files.
+     *
+     * @return an empty batch
+     */
+    public NetbeansBatch batch();
+
+    /**
+     * Return the sessions of the server.
+     *
+     * <p> A session is listed from its <code>startupDone</code> event until
+     * it is closed. This socket is one of them.
+     *
+     * @return the sessions ready to receive commands
+     */
+    public NetbeansSocket[] get_sessions();
+
+    /**
+     * Send a netbeans command with a zero bufID to all the sessions of the
+     * server.
+     *
+     * <p> The command is serialized once and the same string is queued to
+     * the output queue of each session, with a seqno of zero. The sender is
+     * never blocked: a session above its high watermark is skipped when its
+     * <code>vimoir.netbeans.send_policy</code> property is <code>fail</code>,
+     * otherwise the command is queued.
+     *
+     * @param cmd   the command name
+     * @param args  the command parameters, use the quote method to quote
+     *              a Netbeans <code>string</code> parameter
+     * @return the number of sessions the command has been sent to
+     */
+    public int broadcast(String cmd, String args);
+
+    /**
+     * Send a netbeans command on the buffer of <code>pathname</code> to all
+     * the sessions of the server that have this buffer.
+     *
+     * <p> As the bufID of the buffer may differ in each session, only the
+     * bufID is prepended to the command serialized once.
+     *
+     * @param pathname the full pathname of the buffer
+     * @param cmd      the command name
+     * @param args     the command parameters
+     * @return the number of sessions the command has been sent to
+     * @see #broadcast(String, String)
+     */
+    public int broadcast(String pathname, String cmd, String args);
 }
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Logger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Selector and the select loop that dispatches its IO and timer events.
+ *
+ * The timer events are scheduled with the schedule method in a TimerWheel,
+ * and the select call blocks until the nearest deadline or until an IO event.
+ *
+ * There is one Reactor per Selector. The default Reactor runs its loop in the
+ * main thread and owns the listening Server channel. When worker Reactors
+ * have been started with startWorkers, the Server hands over each accepted
+ * connection to one of the workers, and this connection is then served by
+ * the worker thread until it is closed.
+ *
+ * A channel must only be registered with a Selector from the thread of its
+ * Reactor: use the execute method to run code in the Reactor thread.
+ *
+ * Other threads that change the state of a channel, for example by queueing
+ * output with Asynchat.send, invoke wakeup so that the select loop picks up
+ * the change immediately.
+ *
+ * The read buffer and the scratch buffers of the Asynchat channels are
+ * shared by the channels of a Reactor, as they are only used from its thread
+ * and do not keep any data between two events.
+ */
+class Reactor implements Runnable {
+    static final int ROUND_ROBIN = 0;
+    static final int LEAST_LOADED = 1;
+    static Logger logger = Logger.getLogger("vimoir.netbeans");
+    static HashMap<Selector, Reactor> reactors = new HashMap<Selector, Reactor>();
+    static Reactor[] workers = new Reactor[0];
+    static int balance = ROUND_ROBIN;
+    static int next_worker = 0;
+    /** The TimerWheel tick duration in milliseconds. */
+    static long resolution = 20;
+
+    Selector selector;
+    ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    /** The number of channels registered with the selector. */
+    AtomicInteger channels = new AtomicInteger();
+    /** Set when the selector has been woken up since the last select. */
+    AtomicBoolean wakeup_pending = new AtomicBoolean(false);
+    /** Set when a key has been cancelled since the last select. */
+    volatile boolean cancelled_keys = false;
+    TimerWheel wheel;
+    volatile Thread thread = null;
+    volatile boolean running = false;
+    /** The number of iterations of the select loop. */
+    LongAdder iterations = new LongAdder();
+    ByteBuffer inbuf = ByteBuffer.allocate(Asynchat.BUFFER_SIZE);
+    byte[] scratch = new byte[BufferPool.SEGMENT_SIZE];
+    /** The decoded characters of a line. */
+    CharBuffer chars = CharBuffer.allocate(Asynchat.BUFFER_SIZE);
+
+    Reactor(Selector selector) {
+        assert selector != null :  "null selector";
+        this.selector = selector;
+        this.wheel = new TimerWheel(resolution);
+    }
+
+    /** Return the Reactor of this selector, instantiate one when not found. */
+    static synchronized Reactor get(Selector selector) {
+        Reactor reactor = reactors.get(selector);
+        if (reactor == null) {
+            reactor = new Reactor(selector);
+            reactors.put(selector, reactor);
+        }
+        return reactor;
+    }
+
+    /**
+     * Start the worker Reactors, each one in its own thread.
+     *
+     * @param count         the number of worker threads
+     * @param policy        ROUND_ROBIN or LEAST_LOADED
+     */
+    static synchronized void startWorkers(int count, int policy)
+                                                    throws IOException {
+        assert workers.length == 0 : "workers already started";
+        balance = policy;
+        Reactor[] started = new Reactor[count];
+        for (int i = 0; i < count; i++) {
+            Reactor reactor = get(Selector.open());
+            reactor.running = true;
+            reactor.thread = new Thread(reactor, "vimoir-worker-" + i);
+            reactor.thread.start();
+            started[i] = reactor;
+        }
+        workers = started;
+    }
+
+    /**
+     * Stop the worker Reactors and wait for the termination of their
+     * threads. A worker thread terminates when all its channels have been
+     * closed.
+     */
+    static void joinWorkers() {
+        Reactor[] stopped = workers;
+        for (int i = 0; i < stopped.length; i++) {
+            stopped[i].running = false;
+            stopped[i].selector.wakeup();
+        }
+        for (int i = 0; i < stopped.length; i++) {
+            try {
+                stopped[i].thread.join();
+            } catch (InterruptedException e) { /* ignore */ }
+        }
+    }
+
+    /**
+     * Return the worker Reactor that must serve a new connection according to
+     * the balance policy, or null when no worker has been started.
+     */
+    static synchronized Reactor nextWorker() {
+        if (workers.length == 0)
+            return null;
+        if (balance == LEAST_LOADED) {
+            Reactor reactor = workers[0];
+            for (int i = 1; i < workers.length; i++) {
+                if (workers[i].channels.get() < reactor.channels.get())
+                    reactor = workers[i];
+            }
+            return reactor;
+        }
+        Reactor reactor = workers[next_worker];
+        next_worker = (next_worker + 1) % workers.length;
+        return reactor;
+    }
+
+    /** Run <code>task</code> in the thread of this Reactor. */
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        this.wakeup();
+    }
+
+    /**
+     * Wake up the selector when invoked from another thread than the Reactor
+     * thread. The wakeups are coalesced so that a burst of invocations
+     * between two select calls costs a single Selector.wakeup().
+     */
+    void wakeup() {
+        if (Thread.currentThread() == this.thread)
+            return;
+        if (this.wakeup_pending.compareAndSet(false, true))
+            this.selector.wakeup();
+    }
+
+    /**
+     * Notify the loop that a key has been cancelled. The cancelled key is
+     * removed from the selector by the next select, which must not block.
+     */
+    void keyCancelled() {
+        this.cancelled_keys = true;
+        this.wakeup();
+    }
+
+    /**
+     * Schedule <code>task</code> to run in the thread of this Reactor after
+     * <code>delay</code> milliseconds. This method may be invoked from any
+     * thread.
+     *
+     * @param delay the delay in milliseconds
+     * @param task  the task
+     * @return the Timeout handle used to cancel the task
+     */
+    TimerWheel.Timeout schedule(long delay, Runnable task) {
+        final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this, delay, task);
+        if (Thread.currentThread() == this.thread) {
+            this.wheel.add(timeout);
+        } else {
+            final TimerWheel wheel = this.wheel;
+            this.execute(new Runnable() {
+                public void run() { wheel.add(timeout); }
+            });
+        }
+        return timeout;
+    }
+
+    /** Remove <code>timeout</code> from the TimerWheel. */
+    void cancel(final TimerWheel.Timeout timeout) {
+        if (Thread.currentThread() == this.thread) {
+            this.wheel.remove(timeout);
+        } else {
+            final TimerWheel wheel = this.wheel;
+            this.execute(new Runnable() {
+                public void run() { wheel.remove(timeout); }
+            });
+        }
+    }
+
+    void runTasks() {
+        Runnable task = null;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logger.severe("task failed: " + e.toString());
+            }
+        }
+    }
+
+    /** The worker thread. */
+    public void run() {
+        try {
+            this.loop();
+        } catch (IOException e) {
+            logger.severe(e.toString());
+        }
+        logger.info(Thread.currentThread().getName() + " terminated");
+    }
+
+    /**
+     *  Enter a polling loop that terminates when all open channels have been
+     *  closed and all timeouts have expired or have been cancelled and, for a
+     *  worker, when the worker has been stopped.
+     *
+     *  The selector is a map whose items are the channels to watch.  As
+     *  channels are closed they are deleted from their map.
+     *
+     *  The interest sets of all the keys are rebuilt before each select,
+     *  unless Dispatcher.event_driven is set.
+     */
+    void loop() throws IOException {
+        Selector selector = this.selector;
+        this.thread = Thread.currentThread();
+        while (this.running || ! this.tasks.isEmpty()
+                || ! selector.keys().isEmpty() || this.wheel.size != 0) {
+
+            this.iterations.increment();
+            this.wakeup_pending.set(false);
+            this.runTasks();
+            if (! Dispatcher.event_driven)
+                this.setSelectionKeys();
+            long timeout = this.wheel.timeout();
+            boolean select_now = this.cancelled_keys;
+            this.cancelled_keys = false;
+            try {
+                if (timeout == 0 || select_now || ! this.tasks.isEmpty())
+                    selector.selectNow();
+                else if (timeout < 0)
+                    selector.select();
+                else
+                    selector.select(timeout);
+            } catch (IOException e) {
+                logger.severe(e.toString());
+                return;
+            }
+
+            /* Iterate over the resulting selected SelectionKeys and send the
+             * corresponding IO events. */
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            SelectionKey key = null;
+            while (it.hasNext()) {
+                try {
+                    key = it.next();
+                } catch (java.util.ConcurrentModificationException e) {
+                    logger.severe("possibly skipping events after a close");
+                    it.remove();
+                    continue;
+                }
+                it.remove();
+
+                Dispatcher dispatcher = (Dispatcher) key.attachment();
+                if (key.isReadable())
+                    dispatcher.handle_read_event();
+                if (key.isValid() && key.isWritable())
+                    dispatcher.handle_write_event();
+                if (key.isValid() && key.isAcceptable())
+                    dispatcher.handle_accept_event();
+                if (key.isValid() && key.isConnectable())
+                    dispatcher.handle_connect_event();
+            }
+
+            /* Run the expired timer tasks. */
+            this.wheel.expire();
+        }
+    }
+
+    /* Set the SelectionKeys before the call to select. */
+    int setSelectionKeys() {
+        int count = 0;
+        Iterator<SelectionKey> it = this.selector.keys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            if (! key.isValid()) continue;
+            Dispatcher dispatcher = (Dispatcher) key.attachment();
+            int ops = dispatcher.interestOps();
+            if (ops != 0)
+                count++;
+            key.interestOps(ops);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Random;
+import java.nio.charset.Charset;
+
+/**
+ * A rope of text addressed by byte offsets.
+ *
+ * The netbeans offsets are byte offsets in the encoded text, while the text
+ * is kept as strings. The rope is a treap of chunks of text where each node
+ * holds the number of bytes of its subtree, so that locating a byte offset,
+ * inserting and removing text are O(log n) operations. A chunk is split on
+ * a character boundary, its length in bytes is computed arithmetically for
+ * UTF-8 and single byte charsets and by encoding it otherwise.
+ *
+ * Small chunks are merged on insertion so that typing one character at a
+ * time does not create a node per character.
+ *
+ * A Rope is not thread safe.
+ */
+class Rope {
+    static final int CHUNK_SIZE = 512;
+    static Random random = new Random();
+    Node root = null;
+    Charset charset;
+    /** 1 for a single byte charset, 0 for UTF-8, -1 otherwise. */
+    int encoding;
+
+    Rope(Charset charset) {
+        this.charset = charset;
+        this.encoding = encoding(charset);
+    }
+
+    /** Return the encoding kind of <code>charset</code>. */
+    static int encoding(Charset charset) {
+        if (charset.name().equals("UTF-8"))
+            return 0;
+        else if (charset.newEncoder().maxBytesPerChar() == 1.0f)
+            return 1;
+        return -1;
+    }
+
+    /** Return the length of the text in bytes. */
+    int length() {
+        return bytes(this.root);
+    }
+
+    /** Replace the text. */
+    void set(String text) {
+        this.root = null;
+        this.insert(0, text);
+    }
+
+    /**
+     * Insert <code>text</code> at byte <code>offset</code>.
+     *
+     * @throws IndexOutOfBoundsException when offset is beyond the text
+     */
+    void insert(int offset, String text) {
+        if (offset < 0 || offset > this.length())
+            throw new IndexOutOfBoundsException("offset " + offset
+                                        + ", length " + this.length());
+        if (text.length() == 0)
+            return;
+        Node[] parts = this.split(this.root, offset);
+        Node left = parts[0];
+
+        // Append small text to the last chunk before the offset.
+        if (left != null && text.length() < CHUNK_SIZE) {
+            Node[] last = remove_last(left);
+            Node node = last[1];
+            if (node.chunk.length() + text.length() <= CHUNK_SIZE) {
+                node.chunk = node.chunk + text;
+                node.nbytes += this.byte_length(text, 0, text.length());
+                node.update();
+                this.root = merge(merge(last[0], node), parts[1]);
+                return;
+            }
+            left = merge(last[0], node);
+        }
+        Node middle = null;
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + CHUNK_SIZE);
+            // Do not split a surrogate pair.
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1)))
+                end++;
+            middle = merge(middle, this.leaf(text.substring(start, end)));
+            start = end;
+        }
+        this.root = merge(merge(left, middle), parts[1]);
+    }
+
+    /**
+     * Remove <code>length</code> bytes at byte <code>offset</code>.
+     *
+     * @throws IndexOutOfBoundsException when the range is beyond the text
+     */
+    void remove(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > this.length())
+            throw new IndexOutOfBoundsException("offset " + offset + ", length "
+                                    + length + ", text length " + this.length());
+        Node[] parts = this.split(this.root, offset);
+        Node[] tail = this.split(parts[1], length);
+        this.root = merge(parts[0], tail[1]);
+    }
+
+    /** Return <code>length</code> bytes of text at byte <code>offset</code>. */
+    String get(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > this.length())
+            throw new IndexOutOfBoundsException("offset " + offset + ", length "
+                                    + length + ", text length " + this.length());
+        StringBuilder sb = new StringBuilder();
+        this.append(this.root, offset, offset + length, sb);
+        return sb.toString();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        this.append(this.root, 0, this.length(), sb);
+        return sb.toString();
+    }
+
+    /** Append the text of the byte range [start, end[ of the subtree. */
+    void append(Node node, int start, int end, StringBuilder sb) {
+        if (node == null || start >= end)
+            return;
+        int left = bytes(node.left);
+        if (start < left)
+            this.append(node.left, start, Math.min(end, left), sb);
+        int chunk_end = left + node.nbytes;
+        if (start < chunk_end && end > left) {
+            int from = Math.max(start, left) - left;
+            int to = Math.min(end, chunk_end) - left;
+            if (from == 0 && to == node.nbytes)
+                sb.append(node.chunk);
+            else
+                sb.append(node.chunk, this.char_index(node.chunk, from),
+                                      this.char_index(node.chunk, to));
+        }
+        if (end > chunk_end)
+            this.append(node.right, Math.max(start, chunk_end) - chunk_end,
+                                    end - chunk_end, sb);
+    }
+
+    /** Split the subtree at byte <code>offset</code>. */
+    Node[] split(Node node, int offset) {
+        Node[] result = new Node[2];
+        if (node == null)
+            return result;
+        int left = bytes(node.left);
+        if (offset <= left) {
+            Node[] parts = this.split(node.left, offset);
+            node.left = parts[1];
+            node.update();
+            result[0] = parts[0];
+            result[1] = node;
+        } else if (offset >= left + node.nbytes) {
+            Node[] parts = this.split(node.right, offset - left - node.nbytes);
+            node.right = parts[0];
+            node.update();
+            result[0] = node;
+            result[1] = parts[1];
+        } else {
+            // Split the chunk of this node.
+            int index = this.char_index(node.chunk, offset - left);
+            Node head = this.leaf(node.chunk.substring(0, index));
+            Node tail = this.leaf(node.chunk.substring(index));
+            result[0] = merge(node.left, head);
+            result[1] = merge(tail, node.right);
+        }
+        return result;
+    }
+
+    /** Merge two subtrees, all the text of <code>a</code> comes first. */
+    static Node merge(Node a, Node b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.update();
+        return b;
+    }
+
+    /** Return the subtree without its last node, and this last node. */
+    static Node[] remove_last(Node node) {
+        Node[] result = new Node[2];
+        if (node.right == null) {
+            result[0] = node.left;
+            node.left = null;
+            node.update();
+            result[1] = node;
+            return result;
+        }
+        Node[] parts = remove_last(node.right);
+        node.right = parts[0];
+        node.update();
+        result[0] = node;
+        result[1] = parts[1];
+        return result;
+    }
+
+    Node leaf(String chunk) {
+        return new Node(chunk, this.byte_length(chunk, 0, chunk.length()));
+    }
+
+    static int bytes(Node node) {
+        return node == null ? 0 : node.bytes;
+    }
+
+    /** Return the number of bytes of the range [start, end[ of text. */
+    int byte_length(String text, int start, int end) {
+        return byte_length(text, start, end, this.charset, this.encoding);
+    }
+
+    static int byte_length(String text, int start, int end,
+                                            Charset charset, int encoding) {
+        if (encoding == 1)
+            return end - start;
+        if (encoding < 0)
+            return text.substring(start, end).getBytes(charset).length;
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isSurrogate(c))
+                length += 2;
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    /** Return the index of the character at <code>offset</code> bytes. */
+    int char_index(String text, int offset) {
+        if (this.encoding == 1)
+            return offset;
+        int length = 0;
+        int i = 0;
+        while (i < text.length() && length < offset) {
+            length += this.byte_length(text, i, i + 1);
+            i++;
+        }
+        return i;
+    }
+
+    /** A treap node. */
+    static class Node {
+        String chunk;
+        int nbytes;
+        int priority = random.nextInt();
+        Node left = null;
+        Node right = null;
+        /** The number of bytes of the subtree. */
+        int bytes;
+
+        Node(String chunk, int nbytes) {
+            this.chunk = chunk;
+            this.nbytes = nbytes;
+            this.bytes = nbytes;
+        }
+
+        void update() {
+            this.bytes = bytes(this.left) + this.nbytes + bytes(this.right);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An Executor that runs its tasks one at a time and in submission order.
+ *
+ * The tasks of all the SerialExecutors are run by a shared Executor: a new
+ * virtual thread per batch of tasks when the JVM supports virtual threads,
+ * otherwise a cached pool of daemon threads. A batch runs the tasks queued
+ * in the SerialExecutor until its queue is empty, so that at most one thread
+ * runs the tasks of a given SerialExecutor at any time.
+ */
+class SerialExecutor implements Executor {
+    static Logger logger = Logger.getLogger("vimoir.netbeans");
+    static Executor shared = null;
+    ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    AtomicBoolean scheduled = new AtomicBoolean(false);
+    Runnable drain;
+
+    SerialExecutor() {
+        final SerialExecutor executor = this;
+        this.drain = new Runnable() {
+            public void run() { executor.runTasks(); }
+        };
+    }
+
+    /**
+     * Return the shared Executor. Virtual threads are looked up by
+     * reflection, so that vimoir still runs on a JVM without them.
+     */
+    static synchronized Executor getShared() {
+        if (shared != null)
+            return shared;
+        try {
+            Method method = Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor", new Class<?>[0]);
+            shared = (Executor) method.invoke(null, new Object[0]);
+            logger.info("running the client handlers on virtual threads");
+        } catch (Exception e) {
+            shared = Executors.newCachedThreadPool(new ThreadFactory() {
+                AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "vimoir-handler-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            logger.info("running the client handlers on a thread pool");
+        }
+        return shared;
+    }
+
+    /**
+     * Wait for the termination of the queued tasks, at most
+     * <code>timeout</code> milliseconds. The threads of the shared Executor
+     * are daemon threads that would otherwise not run the tasks still queued
+     * when the main thread terminates.
+     */
+    static void shutdown(long timeout) {
+        Executor executor = null;
+        synchronized (SerialExecutor.class) {
+            executor = shared;
+        }
+        if (! (executor instanceof ExecutorService))
+            return;
+        ((ExecutorService) executor).shutdown();
+        try {
+            ((ExecutorService) executor).awaitTermination(
+                                        timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) { /* ignore */ }
+    }
+
+    /** Queue <code>task</code>. This method may be invoked from any thread. */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        if (this.scheduled.compareAndSet(false, true))
+            getShared().execute(this.drain);
+    }
+
+    void runTasks() {
+        do {
+            Runnable task = null;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.severe("task failed: " + e.toString());
+                }
+            }
+            this.scheduled.set(false);
+            // A task queued after the last poll and before the reset of
+            // scheduled has not started a new batch: run it now.
+        } while (! this.tasks.isEmpty()
+                    && this.scheduled.compareAndSet(false, true));
+    }
+}
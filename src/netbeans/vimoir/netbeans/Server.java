@@ -17,20 +17,77 @@
 package vimoir.netbeans;
 
 import java.net.URL;
-import java.io.InputStream;
 import java.io.IOException;
-import java.util.Properties;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.lang.reflect.Constructor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
 
 /**
  * Delegate an accepted connection to a new Connection.
+ *
+ * The new Connection is served by the Reactor of the Server, or by one of the
+ * worker Reactors when they have been started.
+ *
+ * The properties and the client constructor are loaded once in a Config, and
+ * not on each accepted connection. When the properties file is watched, the
+ * Config is replaced on each change of the file and the new properties apply
+ * to the new sessions only.
+ *
+ * The Server is the registry of its sessions, for the broadcast of commands.
+ *
+ * Admission control: an accepted connection is closed before any allocation
+ * when the number of connections has reached max_sessions, or when the token
+ * bucket of the accept rate is empty. A connection that has not completed
+ * the AUTH/startupDone handshake within handshake_timeout is closed.
+ *
+ * The metrics of the Server and of its connections are published as MBeans
+ * when the vimoir.netbeans.jmx property is set.
  */
 class Server extends Dispatcher {
+    /** The configuration of the new sessions. */
+    volatile Config config;
+    WatchService watcher = null;
+    /** The statistics of the accept to startupDone latency, in ns. */
+    long startups = 0;
+    long startup_total = 0;
+    long startup_max = 0;
+    /** The sessions from startupDone until closed. */
+    CopyOnWriteArrayList<Netbeans> sessions = new CopyOnWriteArrayList<Netbeans>();
+    /** The connections from accept until closed. */
+    AtomicInteger connections = new AtomicInteger(0);
+    /** The maximum number of connections, no limit when zero. */
+    int max_sessions = 0;
+    /** The accept rate in connections per second, no limit when zero. */
+    double accept_rate = 0;
+    double accept_burst = 0;
+    double tokens = 0;
+    long refilled = 0;
+    /** The handshake deadline in milliseconds, no deadline when zero. */
+    long handshake_timeout = 0;
+    /** The admission metrics. */
+    LongAdder accepted_count = new LongAdder();
+    LongAdder rejected_sessions = new LongAdder();
+    LongAdder rejected_rate = new LongAdder();
+    LongAdder handshake_timeouts = new LongAdder();
+    /** The protocol counters of the closed connections. */
+    Metrics closed = new Metrics();
+    /** Publish the metrics as MBeans. */
+    boolean jmx = false;
+    ObjectName mbean = null;
 
-    Server(String host, int port) throws IOException {
+    Server(Config config, String host, int port) throws IOException {
         super();
+        this.config = config;
         this.initServer(host, port);
     }
 
@@ -39,11 +96,14 @@ class Server extends Dispatcher {
      *
      * @param selector  Selector used for the Server and all accepted incoming
      *                  connections channels
+     * @param config    the configuration of the sessions
      * @param host      host name, null to listen from any interface (INADDR_ANY)
      * @param port      port number to listen to
      */
-    Server(Selector selector, String host, int port) throws IOException {
+    Server(Selector selector, Config config, String host, int port)
+                                                        throws IOException {
         super(selector);
+        this.config = config;
         this.initServer(host, port);
     }
 
@@ -60,36 +120,261 @@ class Server extends Dispatcher {
 
     void handle_tick() {}
 
+    /**
+     * Set the admission control parameters.
+     *
+     * @param max_sessions      the maximum number of connections
+     * @param accept_rate       the accepted connections per second
+     * @param accept_burst      the size of the token bucket
+     * @param handshake_timeout the handshake deadline in milliseconds
+     */
+    void setAdmission(int max_sessions, double accept_rate,
+                            double accept_burst, long handshake_timeout) {
+        this.max_sessions = max_sessions;
+        this.accept_rate = accept_rate;
+        this.accept_burst = Math.max(1, accept_burst);
+        this.tokens = this.accept_burst;
+        this.refilled = System.nanoTime();
+        this.handshake_timeout = handshake_timeout;
+    }
+
+    /** Take a token from the bucket, return false when empty. */
+    boolean take_token(long now) {
+        if (this.accept_rate <= 0)
+            return true;
+        this.tokens = Math.min(this.accept_burst, this.tokens
+                        + (now - this.refilled) * this.accept_rate / 1e9);
+        this.refilled = now;
+        if (this.tokens < 1)
+            return false;
+        this.tokens -= 1;
+        return true;
+    }
+
     void handle_accept(SocketChannel channel) throws IOException {
-        // Get the class to instantiate.
-        Properties props = new Properties();
-        URL url = ClassLoader.getSystemResource("vimoir.properties");
-        if (url != null) {
-            InputStream f = url.openStream();
-            props.load(f);
-            f.close();
+        long start = System.nanoTime();
+        if (this.max_sessions > 0 && this.connections.get() >= this.max_sessions) {
+            this.rejected_sessions.increment();
+            logger.warning("rejecting " + channel + ": max_sessions reached"
+                    + " (rejected: " + this.rejected_sessions.sum() + ")");
+            channel.close();
+            return;
+        }
+        if (! this.take_token(start)) {
+            this.rejected_rate.increment();
+            logger.warning("rejecting " + channel + ": accept rate exceeded"
+                    + " (rejected: " + this.rejected_rate.sum() + ")");
+            channel.close();
+            return;
         }
-        String name = props.getProperty("vimoir.netbeans.java.client",
-                                                    "vimoir.examples.Phonemic");
-        Netbeans nbsock = new Netbeans(this, props);
+
+        Config config = this.config;
+        Netbeans nbsock = new Netbeans(this, config.props);
+        nbsock.accepted = start;
         NetbeansEventHandler client = null;
         try {
-            Class clazz = Class.forName(name);
-            Class[] types = { vimoir.netbeans.NetbeansSocket.class };
-            Constructor constructor = clazz.getConstructor(types);
-            Object[] params = { nbsock };
-            client = (NetbeansEventHandler) constructor.newInstance(params);
+            client = config.new_client(nbsock);
         } catch (Exception e) {
-            logger.severe("importing client class: " + e.toString());
+            logger.severe("instantiating client class: " + e.toString());
             channel.close();
             return;
         }
 
         nbsock.set_client(client);
-        nbsock.selector = this.selector;
-        nbsock.setSocketChannel(channel);
         logger.info("accepting: " + channel);
+        this.accepted_count.increment();
+        this.connections.incrementAndGet();
+        nbsock.counted.set(true);
+
+        // Hand over the connection to a worker Reactor when there is one.
+        Reactor reactor = Reactor.nextWorker();
+        if (reactor == null) {
+            nbsock.setReactor(this.reactor);
+            nbsock.setSocketChannel(channel);
+            return;
+        }
+        final Netbeans connection = nbsock;
+        final SocketChannel accepted = channel;
+        nbsock.setReactor(reactor);
+        reactor.execute(new Runnable() {
+            public void run() {
+                connection.setSocketChannel(accepted);
+            }
+        });
     }
 
     void handle_connect() {}
+
+    void register(Netbeans nbsock) {
+        this.sessions.addIfAbsent(nbsock);
+    }
+
+    /**
+     * A connection has been closed, or its channel could not be registered.
+     * The connection is released once, even when called again.
+     */
+    void unregister(Netbeans nbsock) {
+        this.sessions.remove(nbsock);
+        if (! nbsock.counted.compareAndSet(true, false))
+            return;
+        this.connections.decrementAndGet();
+        if (nbsock.metrics != null)
+            this.closed.add(nbsock.metrics);
+    }
+
+    /** Register the MBean of the Server and of its new connections. */
+    void register_mbean() {
+        this.jmx = true;
+        String properties = "type=Server,port="
+                    + this.getServerSocketChannel().socket().getLocalPort();
+        if (this.config.name != null)
+            properties += ",name=" + ObjectName.quote(this.config.name);
+        this.mbean = Metrics.register(new Metrics.ServerBean(this), properties);
+    }
+
+    /** A connection has not completed the handshake in time. */
+    void handshake_expired(Netbeans nbsock) {
+        this.handshake_timeouts.increment();
+        logger.warning("closing " + nbsock + ": no startupDone after "
+                + this.handshake_timeout + " ms (timeouts: "
+                + this.handshake_timeouts.sum() + ")");
+    }
+
+    NetbeansSocket[] get_sessions() {
+        return this.sessions.toArray(new NetbeansSocket[0]);
+    }
+
+    /**
+     * Send a command to the sessions, to all of them when pathname is null,
+     * otherwise to the sessions that have a buffer for pathname.
+     *
+     * @return the number of sessions the command has been sent to
+     */
+    int broadcast(String pathname, String cmd, String args) {
+        // The command after the bufID, serialized once.
+        StringBuilder sb = new StringBuilder();
+        Netbeans.append_request(sb, '!', 0, cmd, 0, args);
+        String tail = sb.substring(1);
+        String msg = sb.toString();
+
+        int count = 0;
+        Netbeans[] list = this.sessions.toArray(new Netbeans[0]);
+        for (int i = 0; i < list.length; i++) {
+            Netbeans nbsock = list[i];
+            if (pathname == null) {
+                if (nbsock.send_shared(null, cmd, msg))
+                    count++;
+                continue;
+            }
+            NetbeansBuffer buf = nbsock.bset.find(pathname);
+            if (buf != null && nbsock.send_shared(buf, cmd, tail))
+                count++;
+        }
+        if (logger.isLoggable(java.util.logging.Level.FINEST))
+            logger.finest("broadcast to " + count + " sessions: "
+                                        + msg.substring(0, msg.length() - 1));
+        return count;
+    }
+
+    /** Record the latency from accept to startupDone of a session. */
+    synchronized void startup_done(long latency) {
+        this.startups++;
+        this.startup_total += latency;
+        this.startup_max = Math.max(this.startup_max, latency);
+        logger.info("startupDone " + latency / 1000000L + " ms after accept"
+                + " (sessions: " + this.startups
+                + ", mean: " + this.startup_total / this.startups / 1000000L + " ms"
+                + ", max: " + this.startup_max / 1000000L + " ms)");
+    }
+
+    /**
+     * Watch the properties file and reload the Config on each change, in a
+     * daemon thread. The properties file must be a file of the file system.
+     */
+    void watch_config() throws IOException {
+        URL url = this.config.url;
+        if (url == null || ! url.getProtocol().equals("file")) {
+            logger.warning("cannot watch the properties file: " + url);
+            return;
+        }
+        final Path path;
+        try {
+            path = Paths.get(url.toURI());
+        } catch (Exception e) {
+            logger.warning("cannot watch the properties file: " + e);
+            return;
+        }
+        this.watcher = path.getFileSystem().newWatchService();
+        path.getParent().register(this.watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        final Server server = this;
+        final WatchService watcher = this.watcher;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = watcher.take();
+                        boolean changed = server.changed(key, path);
+                        // An editor may write the file in several steps.
+                        if (changed) {
+                            Thread.sleep(100);
+                            key = watcher.poll();
+                            if (key != null)
+                                server.changed(key, path);
+                            server.reload();
+                        }
+                    }
+                } catch (ClosedWatchServiceException e) {
+                    // The server is closed.
+                } catch (InterruptedException e) {
+                    // Terminated.
+                }
+            }
+        }, "vimoir-config");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("watching " + path);
+    }
+
+    /** Return true when the events of key report a change of path. */
+    boolean changed(WatchKey key, Path path) {
+        boolean changed = false;
+        java.util.Iterator<WatchEvent<?>> it = key.pollEvents().iterator();
+        while (it.hasNext()) {
+            WatchEvent<?> event = it.next();
+            if (path.getFileName().equals(event.context()))
+                changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    /** Load a new Config, keep the current one on error. */
+    void reload() {
+        try {
+            this.config = Config.load(this.config.url, this.config.name);
+            logger.info("reloaded " + this.config.url);
+        } catch (Exception e) {
+            logger.severe("reloading " + this.config.url + ": " + e.toString()
+                                    + ", keeping the current configuration");
+        }
+    }
+
+    public void close() {
+        super.close();
+        logger.info("accepted: " + this.accepted_count.sum()
+                + ", rejected (max_sessions): " + this.rejected_sessions.sum()
+                + ", rejected (accept_rate): " + this.rejected_rate.sum()
+                + ", handshake timeouts: " + this.handshake_timeouts.sum());
+        Metrics.unregister(this.mbean);
+        this.mbean = null;
+        if (this.watcher != null) {
+            try {
+                this.watcher.close();
+            } catch (IOException e) { /* ignore */ }
+            this.watcher = null;
+        }
+    }
 }
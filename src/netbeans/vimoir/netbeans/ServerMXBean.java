@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.Map;
+
+/**
+ * The management interface of a Server.
+ *
+ * The protocol counters are the totals of the closed connections and of the
+ * current sessions.
+ */
+public interface ServerMXBean {
+    /** Return the server name, null when there is a single server. */
+    String getName();
+
+    String getClientClass();
+
+    /** Return the number of connections from accept until closed. */
+    int getConnections();
+
+    /** Return the number of sessions from startupDone until closed. */
+    int getSessions();
+
+    long getAcceptedConnections();
+
+    /** Return the number of connections rejected by max_sessions. */
+    long getRejectedMaxSessions();
+
+    /** Return the number of connections rejected by accept_rate. */
+    long getRejectedAcceptRate();
+
+    long getHandshakeTimeouts();
+
+    /** Return the mean latency from accept to startupDone. */
+    long getStartupMeanMillis();
+
+    long getStartupMaxMillis();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    Map<String, Long> getEvents();
+
+    Map<String, Long> getCommands();
+
+    /** Return the number of buffers of the current sessions. */
+    int getBuffers();
+
+    /** Return the number of iterations of the select loops of the process. */
+    long getSelectIterations();
+}
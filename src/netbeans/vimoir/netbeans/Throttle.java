@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.logging.Logger;
+
+/**
+ * The delivery policy of one type of event to the client.
+ *
+ * With the DEBOUNCE policy, an event is delivered <code>interval</code>
+ * milliseconds after the last one of a burst of events, and only this last
+ * event of the burst is delivered (latest wins). With the THROTTLE policy,
+ * the first event of a burst is delivered immediately and the following ones
+ * are dropped until <code>interval</code> milliseconds have elapsed (leading
+ * edge).
+ *
+ * A Throttle is only accessed from the thread that runs the client handlers,
+ * its timer events are dispatched to this thread with Netbeans.dispatch.
+ */
+class Throttle {
+    static final int DEBOUNCE = 1;
+    static final int THROTTLE = 2;
+    static Logger logger = Logger.getLogger("vimoir.netbeans");
+    Netbeans nbsock;
+    int policy;
+    long interval;
+    /** The latest event not yet delivered. */
+    Runnable pending = null;
+    boolean scheduled = false;
+    long last = 0;
+
+    Throttle(Netbeans nbsock, int policy, long interval) {
+        this.nbsock = nbsock;
+        this.policy = policy;
+        this.interval = interval;
+    }
+
+    /**
+     * Return the Throttle defined by a property value, 'debounce MS' or
+     * 'throttle MS', or null for 'none' or an invalid value.
+     */
+    static Throttle parse(Netbeans nbsock, String name, String value) {
+        String[] words = value.trim().split("\\s+");
+        if (words.length == 1 && words[0].equals("none"))
+            return null;
+        int policy = 0;
+        if (words[0].equals("debounce"))
+            policy = DEBOUNCE;
+        else if (words[0].equals("throttle"))
+            policy = THROTTLE;
+        long interval = -1;
+        if (words.length == 2) {
+            try {
+                interval = Long.parseLong(words[1]);
+            } catch (NumberFormatException e) { /* invalid */ }
+        }
+        if (policy == 0 || interval <= 0) {
+            logger.severe("invalid throttling policy for " + name + ": '"
+                                                            + value + "'");
+            return null;
+        }
+        return new Throttle(nbsock, policy, interval);
+    }
+
+    /** Deliver <code>event</code> according to the policy. */
+    void submit(Runnable event) {
+        long now = System.nanoTime();
+        if (this.policy == THROTTLE) {
+            if (this.last != 0 && now - this.last < this.interval * 1000000L)
+                return;
+            this.last = now;
+            event.run();
+            return;
+        }
+
+        // Debounce: the timer is not rescheduled on each event, it checks
+        // on expiration whether the burst is over.
+        this.pending = event;
+        this.last = now;
+        if (! this.scheduled)
+            this.schedule(this.interval);
+    }
+
+    void schedule(long delay) {
+        final Throttle throttle = this;
+        this.scheduled = true;
+        this.nbsock.schedule(delay, new Runnable() {
+            public void run() {
+                throttle.nbsock.dispatch(new Runnable() {
+                    public void run() { throttle.expire(); }
+                });
+            }
+        });
+    }
+
+    void expire() {
+        this.scheduled = false;
+        if (this.pending == null)
+            return;
+        long elapsed = (System.nanoTime() - this.last) / 1000000L;
+        if (elapsed < this.interval) {
+            this.schedule(this.interval - elapsed);
+            return;
+        }
+        Runnable event = this.pending;
+        this.pending = null;
+        event.run();
+    }
+
+    /** Drop the pending event. */
+    void clear() {
+        this.pending = null;
+    }
+}
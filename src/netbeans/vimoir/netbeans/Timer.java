@@ -21,26 +21,28 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 /**
- * A Timer registered with a Selector.
+ * A Timer scheduled in the TimerWheel of a Reactor.
  *
  * This is an abstract class. You must derive from this class, and implement
- * the handle_tick method.
+ * the handle_tick method. The timer events are sent until the Timer is
+ * closed.
  */
 abstract class Timer extends Dispatcher {
 
-    Timer() throws IOException {
+    Timer(long interval) throws IOException {
         super();
-        this.initTimer();
+        this.startTicks(interval);
     }
 
-    Timer(Selector selector) throws IOException {
+    /**
+     * Constructor.
+     *
+     * @param selector  Selector whose Reactor sends the timer events
+     * @param interval  the timer events period in milliseconds
+     */
+    Timer(Selector selector, long interval) throws IOException {
         super(selector);
-        this.initTimer();
-    }
-
-    void initTimer() throws IOException {
-        // Instantiate a fake SocketChannel to register the timer.
-        this.createSocket(false);
+        this.startTicks(interval);
     }
 
     void handle_read() {}
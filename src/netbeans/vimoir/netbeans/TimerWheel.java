@@ -0,0 +1,216 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel.
+ *
+ * The time is divided in ticks of <code>resolution</code> milliseconds. A
+ * Timeout whose deadline falls on tick <code>t</code> is linked in the slot
+ * <code>t % WHEEL_SIZE</code> of the wheel, so that adding and cancelling a
+ * Timeout are constant time operations, and the expiration of the timeouts
+ * only looks at the slots of the ticks that have elapsed. Timeouts that are
+ * more than one revolution away share their slot with the current ones and
+ * are skipped until their deadline is reached.
+ *
+ * The nearest deadline is kept up to date on each add and after each
+ * expiration, so that the select loop gets its timeout in constant time.
+ *
+ * A TimerWheel is not thread safe: it is only accessed from the thread of
+ * its Reactor, use Reactor.schedule to add a Timeout from another thread.
+ */
+class TimerWheel {
+    static final int WHEEL_SIZE = 512;
+    static final int MASK = WHEEL_SIZE - 1;
+    static Logger logger = Logger.getLogger("vimoir.netbeans");
+    Timeout[] slots = new Timeout[WHEEL_SIZE];
+    ArrayList<Timeout> expired = new ArrayList<Timeout>();
+    /** The tick duration in nanoseconds. */
+    long tick;
+    long origin;
+    /** The next tick to be processed. */
+    long current = 0;
+    int size = 0;
+    /**
+     * The nearest deadline, Long.MAX_VALUE when the wheel is empty. It is a
+     * lower bound when the Timeout of the nearest deadline has been removed.
+     */
+    long nearest = Long.MAX_VALUE;
+
+    /**
+     * Constructor.
+     *
+     * @param resolution the tick duration in milliseconds
+     */
+    TimerWheel(long resolution) {
+        if (resolution < 1)
+            resolution = 1;
+        this.tick = resolution * 1000000L;
+        this.origin = System.nanoTime();
+    }
+
+    /** Return the number of ticks elapsed since the wheel creation. */
+    long now() {
+        return (System.nanoTime() - this.origin) / this.tick;
+    }
+
+    /** Link <code>timeout</code> in the slot of its deadline. */
+    void add(Timeout timeout) {
+        if (timeout.cancelled || timeout.scheduled)
+            return;
+        long deadline = (System.nanoTime() - this.origin
+                    + timeout.delay * 1000000L + this.tick - 1) / this.tick;
+        if (deadline < this.current)
+            deadline = this.current;
+        timeout.deadline = deadline;
+        int index = (int) (deadline & MASK);
+        timeout.prev = null;
+        timeout.next = this.slots[index];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        this.slots[index] = timeout;
+        timeout.scheduled = true;
+        this.size++;
+        if (deadline < this.nearest)
+            this.nearest = deadline;
+    }
+
+    /** Unlink <code>timeout</code> from its slot. */
+    void remove(Timeout timeout) {
+        if (! timeout.scheduled)
+            return;
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            this.slots[(int) (timeout.deadline & MASK)] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        this.size--;
+        if (this.size == 0)
+            this.nearest = Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the number of milliseconds until the nearest deadline, zero when
+     * a deadline has already been reached and -1 when the wheel is empty.
+     *
+     * <p> The select loop may return early when the Timeout of the nearest
+     * deadline has been cancelled, the nearest deadline is then updated by
+     * expire().
+     */
+    long timeout() {
+        if (this.size == 0)
+            return -1;
+        long remaining = this.nearest * this.tick - (System.nanoTime() - this.origin);
+        if (remaining <= 0)
+            return 0;
+        return (remaining + 999999L) / 1000000L;
+    }
+
+    /** Run the tasks of the timeouts whose deadline has been reached. */
+    void expire() {
+        if (this.size == 0) {
+            this.current = this.now() + 1;
+            this.nearest = Long.MAX_VALUE;
+            return;
+        }
+        long now = this.now();
+        long last = now;
+        if (last - this.current >= WHEEL_SIZE)
+            last = this.current + WHEEL_SIZE - 1;
+        for (long t = this.current; t <= last; t++) {
+            Timeout timeout = this.slots[(int) (t & MASK)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= now) {
+                    this.remove(timeout);
+                    this.expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        if (now >= this.current)
+            this.current = now + 1;
+        if (this.nearest <= now)
+            this.find_nearest();
+
+        // Run the tasks after the wheel update, so that a task may schedule
+        // a new Timeout.
+        for (int i = 0; i < this.expired.size(); i++) {
+            Timeout timeout = this.expired.get(i);
+            if (timeout.cancelled)
+                continue;
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                logger.severe("timer task failed: " + e.toString());
+            }
+        }
+        this.expired.clear();
+    }
+
+    /** Find the nearest deadline by scanning the slots from the current one. */
+    void find_nearest() {
+        this.nearest = Long.MAX_VALUE;
+        if (this.size == 0)
+            return;
+        for (long t = this.current; t < this.current + WHEEL_SIZE; t++) {
+            for (Timeout timeout = this.slots[(int) (t & MASK)];
+                                timeout != null; timeout = timeout.next) {
+                if (timeout.deadline < this.nearest)
+                    this.nearest = timeout.deadline;
+            }
+            // The timeouts of the following slots expire later.
+            if (this.nearest <= t)
+                return;
+        }
+    }
+
+    /** A task scheduled to run once after a delay. */
+    static class Timeout {
+        Reactor reactor;
+        Runnable task;
+        long delay;
+        long deadline = 0;
+        Timeout prev = null;
+        Timeout next = null;
+        boolean scheduled = false;
+        volatile boolean cancelled = false;
+
+        Timeout(Reactor reactor, long delay, Runnable task) {
+            this.reactor = reactor;
+            this.delay = delay;
+            this.task = task;
+        }
+
+        /** Cancel the task. This method may be invoked from any thread. */
+        void cancel() {
+            this.cancelled = true;
+            this.reactor.cancel(this);
+        }
+
+        boolean isCancelled() {
+            return this.cancelled;
+        }
+    }
+}
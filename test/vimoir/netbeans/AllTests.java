@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.File;
+import java.util.TreeSet;
+
+/**
+ * Run the unit tests: the classes whose name ends with "Test" in the classes
+ * directory, or the classes given as arguments.
+ *
+ * <p> Usage: AllTests CLASSES_DIR [NAME...]
+ */
+public class AllTests {
+    public static void main(String[] args) throws Exception {
+        String[] names = new String[args.length - 1];
+        System.arraycopy(args, 1, names, 0, names.length);
+        if (names.length == 0)
+            names = find(new File(args[0], "vimoir/netbeans"));
+        int failures = 0;
+        for (int i = 0; i < names.length; i++)
+            failures += TestCase.run(Class.forName("vimoir.netbeans." + names[i]));
+        System.out.println(failures == 0 ? "all tests passed"
+                                        : failures + " test(s) failed");
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    /** Return the sorted names of the test classes of dir. */
+    static String[] find(File dir) {
+        TreeSet result = new TreeSet();
+        String[] files = dir.list();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].substring(0, files[i].length() - 6);
+            if (files[i].endsWith("Test.class")
+                    && name.length() > 4 && name.indexOf('$') == -1)
+                result.add(name);
+        }
+        return (String[]) result.toArray(new String[result.size()]);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/** Asynchat framing of the input lines and encoding of the output. */
+public class AsynchatTest extends TestCase {
+    static Charset utf8 = Charset.forName("UTF-8");
+    Chat chat;
+
+    /** An Asynchat without a channel that records the lines. */
+    static class Chat extends Asynchat {
+        ArrayList lines = new ArrayList();
+        StringBuffer line = new StringBuffer();
+
+        Chat() throws IOException {
+            super();
+            this.setCharset(utf8);
+            this.setTerminator("\n");
+        }
+
+        void collect_incoming_data(String str) {
+            this.line.append(str);
+        }
+
+        void found_terminator() {
+            this.lines.add(this.line.toString());
+            this.line.setLength(0);
+        }
+
+        void handle_accept(SocketChannel channel) {}
+        void handle_connect() {}
+        void handle_tick() {}
+    }
+
+    public AsynchatTest() throws IOException {
+        this.chat = new Chat();
+    }
+
+    /** Feed <code>bytes</code> to read_lines by reads of <code>size</code> bytes. */
+    void feed(byte[] bytes, int size) throws IOException {
+        for (int i = 0; i < bytes.length; i += size)
+            this.chat.read_lines(ByteBuffer.wrap(bytes, i,
+                                        Math.min(size, bytes.length - i)));
+    }
+
+    /** Return the bytes written by the connection for its queued output. */
+    byte[] drain() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        do {
+            this.chat.refill_buffers();
+            for (int i = 0; i < this.chat.nsegments; i++) {
+                ByteBuffer segment = this.chat.segments[i];
+                byte[] bytes = new byte[segment.remaining()];
+                segment.get(bytes);
+                out.write(bytes);
+            }
+            this.chat.release_buffers(false);
+        } while (this.chat.message != null || ! this.chat.output_queue.isEmpty());
+        return out.toByteArray();
+    }
+
+    static String mixed(int length) {
+        StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < length; i++)
+            buffer.append(i % 7 == 0 ? "\u20ac" : i % 11 == 0 ? "\ud83d\ude00" : "a");
+        return buffer.toString();
+    }
+
+    public void test_lines() throws IOException {
+        this.feed("one\n\ntwo\nthr".getBytes(utf8), 1000);
+        check_equal(new String[] {"one", "", "two"},
+                            this.chat.lines.toArray(new String[0]));
+        this.feed("ee\n".getBytes(utf8), 1000);
+        check_equal("three", this.chat.lines.get(3));
+    }
+
+    public void test_split_characters() throws IOException {
+        // Every multi-byte character is split across two reads.
+        String text = mixed(1000);
+        this.feed((text + "\n" + text + "\n").getBytes(utf8), 3);
+        check_equal(new String[] {text, text},
+                            this.chat.lines.toArray(new String[0]));
+    }
+
+    public void test_large_line() throws IOException {
+        String text = mixed(100000);
+        this.feed((text + "\nend\n").getBytes(utf8), Asynchat.BUFFER_SIZE);
+        check_equal(new String[] {text, "end"},
+                            this.chat.lines.toArray(new String[0]));
+        // The memory of the large line is released.
+        check(this.chat.accumulator == null, "accumulator not released");
+        check(this.chat.reactor.chars.capacity() <= 16 * Asynchat.BUFFER_SIZE,
+                                                "decode buffer not released");
+    }
+
+    public void test_idle_buffers() throws IOException {
+        this.feed("one\n".getBytes(utf8), 1000);
+        this.chat.output_queue.add("ascii\n");
+        this.drain();
+        check(this.chat.accumulator == null, "accumulator allocated");
+        check(this.chat.outchars == null, "outchars allocated");
+    }
+
+    public void test_encode_ascii() throws IOException {
+        this.chat.output_queue.add("");
+        this.chat.output_queue.add("a\n");
+        this.chat.output_queue.add("b\n");
+        check_equal("a\nb\n", new String(this.drain(), utf8));
+    }
+
+    public void test_encode_segments() throws IOException {
+        // The messages span several segments and several refills.
+        String text = mixed(50000);
+        char[] chars = new char[3 * BufferPool.SEGMENT_SIZE];
+        java.util.Arrays.fill(chars, 'b');
+        String ascii = new String(chars);
+        this.chat.output_queue.add(ascii);
+        this.chat.output_queue.add(text);
+        this.chat.output_queue.add(ascii);
+        check_equal(ascii + text + ascii, new String(this.drain(), utf8));
+    }
+}
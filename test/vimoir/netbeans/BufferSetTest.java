@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.concurrent.CountDownLatch;
+
+/** BufferSet bufID allocation, reuse and lookup. */
+public class BufferSetTest extends TestCase {
+
+    static NetbeansBuffer get(Netbeans.BufferSet bset, String pathname) {
+        try {
+            return bset.get(pathname);
+        } catch (NetbeansInvalidPathnameException e) {
+            throw new AssertionError(e.toString());
+        }
+    }
+
+    public void test_get() {
+        Netbeans.BufferSet bset = new Netbeans.BufferSet();
+        NetbeansBuffer a = get(bset, "/a");
+        NetbeansBuffer b = get(bset, "/b");
+        check_equal(1, a.buf_id);
+        check_equal(2, b.buf_id);
+        check(get(bset, "/a") == a, "a new buffer for the same pathname");
+        check(bset.find("/b") == b, "find");
+        check(bset.find("/c") == null, "found a missing buffer");
+        check(bset.getbuf_at(1) == a, "getbuf_at");
+        check(bset.getbuf_at(0) == null, "bufID 0");
+        check(bset.getbuf_at(3) == null, "bufID beyond the array");
+        check_equal(2, bset.buffers().length);
+    }
+
+    public void test_invalid_pathname() {
+        Netbeans.BufferSet bset = new Netbeans.BufferSet();
+        try {
+            bset.get("relative");
+            throw new AssertionError("relative pathname accepted");
+        } catch (NetbeansInvalidPathnameException e) {
+            // expected
+        }
+        check_equal(0, bset.buf_list.length);
+    }
+
+    public void test_reuse_bufid() {
+        Netbeans.BufferSet bset = new Netbeans.BufferSet();
+        NetbeansBuffer a = get(bset, "/a");
+        NetbeansBuffer b = get(bset, "/b");
+        NetbeansBuffer c = get(bset, "/c");
+        bset.remove(b);
+        check_equal(-1, b.buf_id);
+        check(bset.getbuf_at(2) == null, "killed buffer still in the array");
+        check(bset.find("/b") == null, "killed buffer still in the map");
+        check_equal(3, bset.buf_list.length);
+        NetbeansBuffer[] buffers = bset.buffers();
+        check_equal(new Object[] {a, c}, buffers);
+
+        // The free bufID is reused.
+        NetbeansBuffer d = get(bset, "/d");
+        check_equal(2, d.buf_id);
+        check(bset.getbuf_at(2) == d, "getbuf_at");
+        // A new buffer with the pathname of a killed buffer.
+        NetbeansBuffer b2 = get(bset, "/b");
+        check(b2 != b, "killed buffer returned");
+        check_equal(4, b2.buf_id);
+    }
+
+    public void test_trim_array() {
+        Netbeans.BufferSet bset = new Netbeans.BufferSet();
+        NetbeansBuffer a = get(bset, "/a");
+        NetbeansBuffer b = get(bset, "/b");
+        NetbeansBuffer c = get(bset, "/c");
+        bset.remove(b);
+        // Removing the last buffer drops the free indexes at the end.
+        bset.remove(c);
+        check_equal(1, bset.buf_list.length);
+        check_equal(2, get(bset, "/d").buf_id);
+        check_equal(3, get(bset, "/e").buf_id);
+        bset.remove(a);
+        check_equal(3, bset.buf_list.length);
+        check_equal(1, get(bset, "/f").buf_id);
+    }
+
+    public void test_remove_twice() {
+        Netbeans.BufferSet bset = new Netbeans.BufferSet();
+        NetbeansBuffer a = get(bset, "/a");
+        bset.remove(a);
+        NetbeansBuffer b = get(bset, "/b");
+        check_equal(1, b.buf_id);
+        // A stale buffer does not remove the buffer that reuses its bufID.
+        a.buf_id = 1;
+        bset.remove(a);
+        check(bset.getbuf_at(1) == b, "removed the new buffer");
+        check(bset.find("/b") == b, "removed the new buffer from the map");
+    }
+
+    public void test_concurrent_get() throws InterruptedException {
+        final Netbeans.BufferSet bset = new Netbeans.BufferSet();
+        final int nthreads = 8;
+        final int count = 200;
+        final NetbeansBuffer[][] results = new NetbeansBuffer[nthreads][count];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < count; j++)
+                        results[n][j] = get(bset, "/file" + j);
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < nthreads; i++)
+            threads[i].join();
+
+        // One buffer per pathname, with a distinct bufID.
+        check_equal(count, bset.buffers().length);
+        boolean[] seen = new boolean[count + 1];
+        for (int j = 0; j < count; j++) {
+            NetbeansBuffer buf = results[0][j];
+            for (int i = 1; i < nthreads; i++)
+                check(results[i][j] == buf, "two buffers for /file" + j);
+            check(! seen[buf.buf_id], "duplicate bufID " + buf.buf_id);
+            seen[buf.buf_id] = true;
+            check(bset.getbuf_at(buf.buf_id) == buf, "getbuf_at " + buf.buf_id);
+        }
+    }
+}
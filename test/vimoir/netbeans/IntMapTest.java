@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/** IntMap operations and the backward shift of the removed entries. */
+public class IntMapTest extends TestCase {
+    IntMap map = new IntMap();
+
+    /** Return <code>count</code> keys whose home slot is <code>slot</code>. */
+    int[] colliding(int slot, int count) {
+        int[] keys = new int[count];
+        int n = 0;
+        for (int key = 0; n < count; key++) {
+            if ((IntMap.hash(key) & this.map.mask) == slot)
+                keys[n++] = key;
+        }
+        return keys;
+    }
+
+    public void test_put_get() {
+        check(this.map.get(0) == null, "found in empty map");
+        check(this.map.put(0, "zero") == null, "old value");
+        check(this.map.put(-1, "minus") == null, "old value");
+        check_equal("zero", this.map.put(0, "zero2"));
+        check_equal("zero2", this.map.get(0));
+        check_equal("minus", this.map.get(-1));
+        check_equal(2, this.map.size);
+        check(this.map.remove(7) == null, "removed a missing key");
+        check_equal(2, this.map.size);
+    }
+
+    public void test_resize() {
+        for (int i = 0; i < 1000; i++)
+            this.map.put(i * 31, Integer.valueOf(i));
+        check_equal(1000, this.map.size);
+        check(this.map.keys.length >= 2000, "not resized");
+        for (int i = 0; i < 1000; i++)
+            check_equal(Integer.valueOf(i), this.map.get(i * 31));
+    }
+
+    public void test_remove_cluster_wraparound() {
+        // A cluster of keys whose home slot is the last one wraps around
+        // to the start of the table, followed by a key of slot 0.
+        int last = this.map.mask;
+        int[] keys = this.colliding(last, 3);
+        int zero = this.colliding(0, 1)[0];
+        for (int i = 0; i < keys.length; i++)
+            this.map.put(keys[i], "k" + i);
+        this.map.put(zero, "zero");
+
+        check_equal("k0", this.map.remove(keys[0]));
+        check(this.map.get(keys[0]) == null, "removed key found");
+        check_equal("k1", this.map.get(keys[1]));
+        check_equal("k2", this.map.get(keys[2]));
+        check_equal("zero", this.map.get(zero));
+
+        check_equal("k1", this.map.remove(keys[1]));
+        check_equal("k2", this.map.get(keys[2]));
+        check_equal("zero", this.map.get(zero));
+        // The entries have been shifted back: no hole in the cluster.
+        check_equal(keys[2], this.map.keys[last]);
+    }
+
+    public void test_clear() {
+        this.map.put(1, "a");
+        this.map.put(2, "b");
+        Object[] values = this.map.clear();
+        check_equal(2, values.length);
+        check_equal(0, this.map.size);
+        check(this.map.get(1) == null, "found after clear");
+    }
+
+    public void test_random() {
+        // Compare with a HashMap on a small key range to get collisions.
+        HashMap expected = new HashMap();
+        Random random = new Random(1);
+        for (int n = 0; n < 100000; n++) {
+            int key = random.nextInt(64) - 32;
+            if (random.nextInt(3) == 0)
+                check_equal(expected.remove(Integer.valueOf(key)), this.map.remove(key));
+            else {
+                Integer value = Integer.valueOf(n);
+                check_equal(expected.put(Integer.valueOf(key), value),
+                                                    this.map.put(key, value));
+            }
+            check_equal(expected.size(), this.map.size);
+        }
+        for (Iterator it = expected.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            check_equal(entry.getValue(),
+                        this.map.get(((Integer) entry.getKey()).intValue()));
+        }
+        for (int key = -32; key < 32; key++)
+            check_equal(expected.get(Integer.valueOf(key)), this.map.get(key));
+    }
+}
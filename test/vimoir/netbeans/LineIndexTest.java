@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/** LineIndex offset and line conversions, checked against a String. */
+public class LineIndexTest extends TestCase {
+    static Charset utf8 = Charset.forName("UTF-8");
+
+    /** Check all the conversions of <code>index</code> against the text. */
+    static void check_index(LineIndex index, String text) {
+        byte[] bytes = text.getBytes(utf8);
+        check_equal(bytes.length, index.length());
+        int line = 0;
+        int start = 0;
+        for (int offset = 0; offset <= bytes.length; offset++) {
+            check_equal(line, index.line(offset));
+            if (offset == start)
+                check_equal(start, index.start(line));
+            if (offset < bytes.length && bytes[offset] == '\n') {
+                line++;
+                start = offset + 1;
+            }
+        }
+        check_equal(line + 1, index.lines());
+        check_chunks(index.root);
+    }
+
+    static void check_chunks(LineIndex.Node node) {
+        if (node == null)
+            return;
+        check(node.lens.length > 0 && node.lens.length <= LineIndex.CHUNK_SIZE,
+                                        "chunk of " + node.lens.length + " lines");
+        check_chunks(node.left);
+        check_chunks(node.right);
+    }
+
+    static int count_nodes(LineIndex.Node node) {
+        return node == null ? 0
+                : 1 + count_nodes(node.left) + count_nodes(node.right);
+    }
+
+    static int offset(String text, int index) {
+        return text.substring(0, index).getBytes(utf8).length;
+    }
+
+    public void test_empty() {
+        LineIndex index = new LineIndex(utf8);
+        check_equal(0, index.length());
+        check_equal(1, index.lines());
+        check_equal(0, index.line(0));
+        check_equal(0, index.start(0));
+        index.insert(0, "");
+        index.remove(0, 0);
+        check_index(index, "");
+    }
+
+    public void test_out_of_bounds() {
+        LineIndex index = new LineIndex(utf8);
+        index.set("ab\ncd");
+        int[] offsets = {-1, 6};
+        for (int i = 0; i < offsets.length; i++) {
+            try {
+                index.line(offsets[i]);
+                throw new AssertionError("line of offset " + offsets[i]);
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+        int[] lines = {-1, 2};
+        for (int i = 0; i < lines.length; i++) {
+            try {
+                index.start(lines[i]);
+                throw new AssertionError("start of line " + lines[i]);
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+        try {
+            index.remove(4, 2);
+            throw new AssertionError("removed beyond the text");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        check_index(index, "ab\ncd");
+    }
+
+    public void test_trailing_newline() {
+        LineIndex index = new LineIndex(utf8);
+        index.set("ab\n");
+        check_equal(2, index.lines());
+        check_equal(0, index.line(2));
+        check_equal(1, index.line(3));
+        check_equal(3, index.start(1));
+    }
+
+    public void test_multibyte() {
+        LineIndex index = new LineIndex(utf8);
+        String text = "\u00E9\n\u20AC\uD83D\uDE00\nz";
+        index.set(text);
+        check_index(index, text);
+        check_equal(3, index.start(1));
+        check_equal(11, index.start(2));
+    }
+
+    public void test_join_and_split_lines() {
+        LineIndex index = new LineIndex(utf8);
+        index.set("ab\ncd\nef");
+        // Remove the two newlines.
+        index.remove(1, 6);
+        check_index(index, "af");
+        index.insert(1, "x\ny\n");
+        check_index(index, "ax\ny\nf");
+    }
+
+    public void test_large_text() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10 * LineIndex.CHUNK_SIZE; i++)
+            sb.append("line ").append(i).append('\n');
+        String text = sb.toString();
+        LineIndex index = new LineIndex(utf8);
+        index.set(text);
+        check_index(index, text);
+        check(count_nodes(index.root) > 1, "a single chunk");
+    }
+
+    public void test_typing_newlines() {
+        LineIndex index = new LineIndex(utf8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10 * LineIndex.CHUNK_SIZE; i++) {
+            index.insert(index.length(), "\n");
+            sb.append('\n');
+        }
+        check_index(index, sb.toString());
+        // Successive edits do not fragment the chunks.
+        check(count_nodes(index.root) <= 20, "nodes " + count_nodes(index.root));
+    }
+
+    public void test_random_edits() {
+        Random random = new Random(1);
+        String[] chars = {"a", "\n", "\n", "\u00E9", "\u20AC", "\uD83D\uDE00"};
+        LineIndex index = new LineIndex(utf8);
+        String text = "";
+        for (int n = 0; n < 2000; n++) {
+            int start = random.nextInt(text.length() + 1);
+            if (start > 0 && start < text.length()
+                                && Character.isLowSurrogate(text.charAt(start)))
+                start--;
+            if (text.length() > 0 && random.nextInt(3) == 0) {
+                int end = start + random.nextInt(
+                        Math.min(4 * LineIndex.CHUNK_SIZE, text.length() - start) + 1);
+                if (end < text.length() && Character.isLowSurrogate(text.charAt(end)))
+                    end++;
+                int offset = offset(text, start);
+                index.remove(offset, offset(text, end) - offset);
+                text = text.substring(0, start) + text.substring(end);
+            } else {
+                // Mostly typing, sometimes a paste of more than a chunk of lines.
+                int length = random.nextInt(10) == 0
+                                ? random.nextInt(6 * LineIndex.CHUNK_SIZE) : 1;
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < length; i++)
+                    sb.append(chars[random.nextInt(chars.length)]);
+                index.insert(offset(text, start), sb.toString());
+                text = text.substring(0, start) + sb + text.substring(start);
+            }
+            if (n % 50 == 0)
+                check_index(index, text);
+        }
+        check_index(index, text);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/** Parsing of the netbeans messages. */
+public class ParserTest extends TestCase {
+    Netbeans.Parser parser;
+
+    public ParserTest() throws IOException {
+        this.parser = new Netbeans(null, new Properties()).parser;
+    }
+
+    Netbeans.Parser parse(String msg) throws NetbeansException {
+        return this.parser.parse(msg);
+    }
+
+    void check_invalid(String msg) {
+        try {
+            this.parse(msg);
+        } catch (NetbeansException e) {
+            return;
+        } catch (NumberFormatException e) {
+            return;
+        }
+        throw new AssertionError("invalid message parsed: " + msg);
+    }
+
+    public void test_event() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse("2:newDotAndMark=35 1021 -1");
+        check(parsed.is_event, "not an event");
+        check_equal(2, parsed.buf_id);
+        check(parsed.event == Netbeans.EVT_NEWDOTANDMARK, "not interned");
+        check_equal(35, parsed.seqno);
+        check_equal(2, parsed.argc);
+        check_equal(1021, parsed.int_arg(0));
+        check_equal(-1, parsed.int_arg(1));
+        check_equal(new String[] {"1021", "-1"}, parsed.arg_list());
+    }
+
+    public void test_event_names() {
+        for (int i = 0; i < Netbeans.EVENTS.length; i++) {
+            String name = Netbeans.EVENTS[i];
+            String msg = " " + name + "=";
+            check(Netbeans.event_name(msg, 1, msg.length() - 1) == name,
+                                                    "not interned: " + name);
+        }
+        String unknown = Netbeans.event_name("0:unknownEvent=1", 2, 14);
+        check_equal("unknownEvent", unknown);
+        check_equal("", Netbeans.event_name("", 0, 0));
+    }
+
+    public void test_unknown_event() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse("0:a=b=12 x");
+        check(parsed.is_event, "not an event");
+        check_equal("a=b", parsed.event);
+        check_equal(12, parsed.seqno);
+        check_equal(new String[] {"x"}, parsed.arg_list());
+    }
+
+    public void test_no_args() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse("  0:startupDone=0  ");
+        check(parsed.event == Netbeans.EVT_STARTUPDONE, "not interned");
+        check_equal(new String[] {""}, parsed.arg_list());
+        check_equal("", parsed.nbstring);
+    }
+
+    public void test_insert() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse(
+                        "3:insert=7 120 \"a \\\"quoted\\\" \\tline\\n\"");
+        check_equal(new String[] {"120"}, parsed.arg_list());
+        check_equal("a \"quoted\" \tline\n", parsed.nbstring);
+
+        // A quoted space.
+        parsed = this.parse("3:insert=8 0 \" \"");
+        check_equal(" ", parsed.nbstring);
+    }
+
+    public void test_invalid_insert() {
+        this.check_invalid("3:insert=7");
+        this.check_invalid("3:insert=7 120");
+    }
+
+    public void test_string_and_args() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse(
+                        "1:fileOpened=0 \"/tmp/foo \\\"x\\\".c\" T F");
+        check_equal("/tmp/foo \"x\".c", parsed.nbstring);
+        check_equal(new String[] {"T", "F"}, parsed.arg_list());
+    }
+
+    public void test_keys_not_unquoted() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse("1:keyAtPos=4 \"S-\\\"\" 10 2/3");
+        check_equal("S-\\\"", parsed.nbstring);
+        check_equal(new String[] {"10", "2/3"}, parsed.arg_list());
+    }
+
+    public void test_reply() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse("42 \"some\\ntext\"");
+        check(! parsed.is_event, "an event");
+        check_equal(42, parsed.seqno);
+        check_equal("some\ntext", parsed.nbstring);
+        check_equal(new String[] {""}, parsed.arg_list());
+
+        parsed = this.parse("43 1 2");
+        check_equal(new String[] {"1", "2"}, parsed.arg_list());
+        parsed = this.parse("44");
+        check_equal(44, parsed.seqno);
+        check_equal(1, parsed.argc);
+    }
+
+    public void test_reuse() throws NetbeansException {
+        // The state of the previous message is reset.
+        this.parse("1:fileOpened=0 \"/tmp/foo.c\" T F 1 2 3 4 5 6");
+        Netbeans.Parser parsed = this.parse("2 x");
+        check(! parsed.is_event, "an event");
+        check_equal("", parsed.event);
+        check_equal("", parsed.nbstring);
+        check_equal(new String[] {"x"}, parsed.arg_list());
+    }
+
+    public void test_invalid() {
+        this.check_invalid("");
+        this.check_invalid("   ");
+        this.check_invalid("abc");
+        this.check_invalid(":insert=1 0 \"x\"");
+    }
+
+    public void test_number() throws NetbeansException {
+        Netbeans.Parser parsed = this.parse("1 2147483647 -2147483648 99999999999 - 1x");
+        check_equal(Integer.MAX_VALUE, parsed.int_arg(0));
+        check_equal(Integer.MIN_VALUE, parsed.int_arg(1));
+        for (int i = 2; i < parsed.argc; i++) {
+            try {
+                parsed.int_arg(i);
+                throw new AssertionError("not a number: " + parsed.arg(i));
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+/** Quoting, unquoting and splitting of the netbeans strings. */
+public class QuoteTest extends TestCase {
+    Netbeans nbsock;
+
+    public QuoteTest() throws IOException {
+        this.nbsock = new Netbeans(null, new Properties());
+    }
+
+    public void test_quote() {
+        check_equal("\"\"", this.nbsock.quote(""));
+        check_equal("\"abc\"", this.nbsock.quote("abc"));
+        check_equal("\"a\\\"b\\\\c\\nd\\te\\r\"",
+                                this.nbsock.quote("a\"b\\c\nd\te\r"));
+        check_equal("\"\\\\\\\\\"", this.nbsock.quote("\\\\"));
+    }
+
+    public void test_unquote() {
+        check_equal("", Netbeans.unquote(""));
+        String text = "no escape";
+        check(Netbeans.unquote(text) == text, "not the same string");
+        check_equal("a\"b\\c\nd\te\r", Netbeans.unquote("a\\\"b\\\\c\\nd\\te\\r"));
+        // Unknown escape sequences and a trailing backslash are kept.
+        check_equal("\\x\\", Netbeans.unquote("\\x\\"));
+        check_equal("\\", Netbeans.unquote("\\\\"));
+        check_equal("b", Netbeans.unquote("a\\\"b\"", 3, 4));
+        check_equal("\"b", Netbeans.unquote("a\\\"b\"", 1, 4));
+    }
+
+    public void test_round_trip() {
+        char[] alphabet = {'a', ' ', '"', '\\', '\n', '\t', '\r', 'n', 't', '\u00e9'};
+        Random random = new Random(1);
+        for (int n = 0; n < 2000; n++) {
+            char[] chars = new char[random.nextInt(20)];
+            for (int i = 0; i < chars.length; i++)
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            String text = new String(chars);
+            String quoted = this.nbsock.quote(text);
+            check(quoted.charAt(0) == '"' && quoted.charAt(quoted.length() - 1) == '"',
+                                                        "not quoted: " + quoted);
+            check_equal(text, Netbeans.unquote(quoted.substring(1, quoted.length() - 1)));
+            check_equal(text, Netbeans.unquote(quoted, 1, quoted.length() - 1));
+        }
+    }
+
+    public void test_large() {
+        StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < 100000; i++)
+            buffer.append("line \"").append(i).append("\"\n");
+        String text = buffer.toString();
+        String quoted = this.nbsock.quote(text);
+        check_equal(text, Netbeans.unquote(quoted, 1, quoted.length() - 1));
+    }
+
+    public void test_split() {
+        check_equal(new String[] {"a c", "b", "v", "this \"is\" foobar argument", "Y"},
+            this.nbsock.split_quoted_string(
+                            "\"a c\" b v \"this \\\"is\\\" foobar argument\" Y "));
+        // Only a space separates the tokens that are not quoted.
+        check_equal(new String[] {"a\tb", "c"}, this.nbsock.split_quoted_string(" a\tb  c "));
+        check_equal(new String[] {"tab\there", "x"},
+                            this.nbsock.split_quoted_string("\"tab\\there\" x"));
+    }
+
+    public void test_split_empty() {
+        check_equal(new String[0], this.nbsock.split_quoted_string(""));
+        check_equal(new String[0], this.nbsock.split_quoted_string("   "));
+        // An empty quoted token is skipped.
+        check_equal(new String[] {"a"}, this.nbsock.split_quoted_string("\"\" a"));
+    }
+
+    public void test_split_unterminated() {
+        // The token ends at the double quote of the last escaped one, as in
+        // netbeans.py.
+        check_equal(new String[] {"a \"b\\"},
+                            this.nbsock.split_quoted_string("\"a \\\"b\\\""));
+        check_equal(new String[] {"a", "b"}, this.nbsock.split_quoted_string("\"a b"));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/** Rope byte offsets, chunk merge and split, checked against a String. */
+public class RopeTest extends TestCase {
+    static Charset utf8 = Charset.forName("UTF-8");
+    /** ASCII, two, three and four bytes (a surrogate pair) UTF-8 characters. */
+    static String[] UTF8_CHARS = {"a", "\n", "\u00E9", "\u20AC", "\uD83D\uDE00"};
+
+    /** Return the number of bytes of the first <code>index</code> chars. */
+    static int offset(String text, int index, Charset charset) {
+        return text.substring(0, index).getBytes(charset).length;
+    }
+
+    static String random_text(Random random, String[] chars, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(chars[random.nextInt(chars.length)]);
+        return sb.toString();
+    }
+
+    /** Return a random char index that does not split a surrogate pair. */
+    static int random_index(Random random, String text) {
+        int index = random.nextInt(text.length() + 1);
+        if (index > 0 && index < text.length()
+                            && Character.isLowSurrogate(text.charAt(index)))
+            index--;
+        return index;
+    }
+
+    static int count_nodes(Rope.Node node) {
+        return node == null ? 0
+                : 1 + count_nodes(node.left) + count_nodes(node.right);
+    }
+
+    static void check_chunks(Rope.Node node) {
+        if (node == null)
+            return;
+        check(node.chunk.length() > 0, "empty chunk");
+        check(! Character.isLowSurrogate(node.chunk.charAt(0)),
+                                            "surrogate pair split");
+        check_chunks(node.left);
+        check_chunks(node.right);
+    }
+
+    /** Apply random inserts and removes to a Rope and to a String. */
+    void random_edits(Charset charset, String[] chars) {
+        Random random = new Random(1);
+        Rope rope = new Rope(charset);
+        String text = "";
+        for (int n = 0; n < 3000; n++) {
+            if (text.length() > 0 && random.nextInt(3) == 0) {
+                int start = random_index(random, text);
+                int end = start + random.nextInt(
+                            Math.min(2 * Rope.CHUNK_SIZE, text.length() - start) + 1);
+                if (end < text.length() && Character.isLowSurrogate(text.charAt(end)))
+                    end++;
+                int offset = offset(text, start, charset);
+                rope.remove(offset, offset(text, end, charset) - offset);
+                text = text.substring(0, start) + text.substring(end);
+            } else {
+                int index = random_index(random, text);
+                // Mostly typing, sometimes a paste larger than a chunk.
+                int length = random.nextInt(10) == 0
+                                ? random.nextInt(3 * Rope.CHUNK_SIZE) : 1;
+                String inserted = random_text(random, chars, length);
+                rope.insert(offset(text, index, charset), inserted);
+                text = text.substring(0, index) + inserted + text.substring(index);
+            }
+            check_equal(text.getBytes(charset).length, rope.length());
+            if (n % 100 == 0) {
+                check_equal(text, rope.toString());
+                check_chunks(rope.root);
+            }
+        }
+        check_equal(text, rope.toString());
+
+        // Get ranges across the chunks.
+        for (int n = 0; n < 200; n++) {
+            int start = random_index(random, text);
+            int end = start + random.nextInt(text.length() - start + 1);
+            if (end < text.length() && Character.isLowSurrogate(text.charAt(end)))
+                end++;
+            int offset = offset(text, start, charset);
+            check_equal(text.substring(start, end),
+                        rope.get(offset, offset(text, end, charset) - offset));
+        }
+    }
+
+    public void test_empty() {
+        Rope rope = new Rope(utf8);
+        check_equal(0, rope.length());
+        check_equal("", rope.toString());
+        check_equal("", rope.get(0, 0));
+        rope.remove(0, 0);
+        rope.insert(0, "");
+        check(rope.root == null, "empty insert");
+        rope.set("");
+        check_equal(0, rope.length());
+    }
+
+    public void test_out_of_bounds() {
+        Rope rope = new Rope(utf8);
+        rope.set("abc");
+        int[][] ranges = {{-1, 0}, {0, 4}, {2, 2}, {4, 0}, {0, -1}};
+        for (int i = 0; i < ranges.length; i++) {
+            try {
+                rope.remove(ranges[i][0], ranges[i][1]);
+                throw new AssertionError("removed " + ranges[i][0] + ", " + ranges[i][1]);
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+        try {
+            rope.insert(4, "x");
+            throw new AssertionError("inserted beyond the text");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        check_equal("abc", rope.toString());
+    }
+
+    public void test_multibyte_offsets() {
+        Rope rope = new Rope(utf8);
+        // 1 + 2 + 3 + 4 bytes.
+        rope.set("a\u00E9\u20AC\uD83D\uDE00");
+        check_equal(10, rope.length());
+        check_equal("\u20AC", rope.get(3, 3));
+        check_equal("\uD83D\uDE00", rope.get(6, 4));
+        rope.insert(6, "x");
+        check_equal("a\u00E9\u20ACx\uD83D\uDE00", rope.toString());
+        rope.remove(1, 5);
+        check_equal("ax\uD83D\uDE00", rope.toString());
+    }
+
+    public void test_typing_merges_chunks() {
+        Rope rope = new Rope(utf8);
+        for (int i = 0; i < 10 * Rope.CHUNK_SIZE; i++)
+            rope.insert(rope.length(), "x");
+        check_equal(10 * Rope.CHUNK_SIZE, rope.length());
+        check(count_nodes(rope.root) <= 10, "nodes " + count_nodes(rope.root));
+    }
+
+    public void test_large_insert_surrogates() {
+        Rope rope = new Rope(utf8);
+        StringBuilder sb = new StringBuilder("a");
+        for (int i = 0; i < 3 * Rope.CHUNK_SIZE; i++)
+            sb.append("\uD83D\uDE00");
+        String text = sb.toString();
+        rope.set(text);
+        check(count_nodes(rope.root) > 1, "a single chunk");
+        check_chunks(rope.root);
+        check_equal(text, rope.toString());
+        check_equal(1 + 4 * 3 * Rope.CHUNK_SIZE, rope.length());
+    }
+
+    public void test_remove_across_chunks() {
+        Rope rope = new Rope(utf8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4 * Rope.CHUNK_SIZE; i++)
+            sb.append((char) ('a' + i % 26));
+        String text = sb.toString();
+        rope.set(text);
+        int start = Rope.CHUNK_SIZE / 2;
+        int end = 3 * Rope.CHUNK_SIZE + 7;
+        rope.remove(start, end - start);
+        check_equal(text.substring(0, start) + text.substring(end), rope.toString());
+        rope.remove(0, rope.length());
+        check_equal("", rope.toString());
+    }
+
+    public void test_random_utf8() {
+        this.random_edits(utf8, UTF8_CHARS);
+    }
+
+    public void test_random_latin1() {
+        this.random_edits(Charset.forName("ISO-8859-1"),
+                                        new String[] {"a", "\n", "\u00E9"});
+    }
+
+    public void test_random_multibyte_charset() {
+        this.random_edits(Charset.forName("EUC-JP"),
+                                new String[] {"a", "\n", "\u6771", "\u306E"});
+    }
+}
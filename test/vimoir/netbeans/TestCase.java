@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * The base class of the unit tests.
+ *
+ * Each public method whose name starts with "test_" is run on a new instance
+ * of the subclass, a test fails when it throws an exception.
+ */
+abstract class TestCase {
+
+    /** Run the tests and return the number of failures. */
+    static int run(Class clazz) throws Exception {
+        int failures = 0;
+        Method[] methods = clazz.getMethods();
+        Arrays.sort(methods, new java.util.Comparator() {
+            public int compare(Object a, Object b) {
+                return ((Method) a).getName().compareTo(((Method) b).getName());
+            }
+        });
+        for (int i = 0; i < methods.length; i++) {
+            String name = methods[i].getName();
+            if (! name.startsWith("test_"))
+                continue;
+            String label = clazz.getName().substring(
+                        clazz.getName().lastIndexOf('.') + 1) + "." + name;
+            try {
+                methods[i].invoke(clazz.newInstance(), new Object[0]);
+                System.out.println("ok     " + label);
+            } catch (InvocationTargetException e) {
+                failures++;
+                System.out.println("FAILED " + label);
+                e.getCause().printStackTrace(System.out);
+            }
+        }
+        return failures;
+    }
+
+    static void check(boolean condition, String message) {
+        if (! condition)
+            throw new AssertionError(message);
+    }
+
+    static void check_equal(Object expected, Object actual) {
+        if (expected == null ? actual != null : ! expected.equals(actual))
+            throw new AssertionError("expected <" + expected
+                                    + "> but was <" + actual + ">");
+    }
+
+    static void check_equal(long expected, long actual) {
+        if (expected != actual)
+            throw new AssertionError("expected <" + expected
+                                    + "> but was <" + actual + ">");
+    }
+
+    static void check_equal(Object[] expected, Object[] actual) {
+        if (! Arrays.equals(expected, actual))
+            throw new AssertionError("expected " + Arrays.asList(expected)
+                + " but was " + (actual == null ? null : Arrays.asList(actual)));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 Xavier de Gaye
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vimoir.netbeans;
+
+import java.util.ArrayList;
+
+/**
+ * TimerWheel tests. The ticks last one second and the time is moved forward
+ * by changing the origin of the wheel, so a test does not depend on the speed
+ * of the machine as long as it lasts less than one second.
+ */
+public class TimerWheelTest extends TestCase {
+    TimerWheel wheel = new TimerWheel(1000);
+    ArrayList fired = new ArrayList();
+
+    /** Move the time forward by <code>ticks</code> and expire the timeouts. */
+    void advance(long ticks) {
+        this.wheel.origin -= ticks * this.wheel.tick;
+        this.wheel.expire();
+    }
+
+    /** Add a Timeout that records its name when it fires. */
+    TimerWheel.Timeout add(long seconds, final String name) {
+        TimerWheel.Timeout timeout = new TimerWheel.Timeout(null,
+                seconds * 1000, new Runnable() {
+                    public void run() { fired.add(name); }
+                });
+        this.wheel.add(timeout);
+        return timeout;
+    }
+
+    void check_fired(String[] names) {
+        check_equal(names, this.fired.toArray(new String[this.fired.size()]));
+    }
+
+    public void test_empty() {
+        check_equal(-1, this.wheel.timeout());
+        this.advance(3);
+        check_equal(-1, this.wheel.timeout());
+        check_equal(0, this.wheel.size);
+    }
+
+    public void test_expire_in_order() {
+        // A deadline is rounded up to the next tick.
+        this.add(3, "c");
+        this.add(1, "a");
+        this.add(2, "b");
+        long timeout = this.wheel.timeout();
+        check(timeout > 1900 && timeout <= 2000, "timeout " + timeout);
+        this.advance(1);
+        check_fired(new String[0]);
+        this.advance(1);
+        check_fired(new String[] {"a"});
+        this.advance(1);
+        check_fired(new String[] {"a", "b"});
+        this.advance(1);
+        check_fired(new String[] {"a", "b", "c"});
+        check_equal(-1, this.wheel.timeout());
+    }
+
+    public void test_same_deadline() {
+        this.add(2, "a");
+        this.add(2, "b");
+        this.advance(3);
+        check_equal(2, this.fired.size());
+        check_equal(0, this.wheel.size);
+    }
+
+    public void test_rounds() {
+        // Both timeouts are linked in the same slot.
+        this.add(5, "near");
+        this.add(TimerWheel.WHEEL_SIZE + 5, "far");
+        this.advance(6);
+        check_fired(new String[] {"near"});
+        long timeout = this.wheel.timeout();
+        check(timeout > (TimerWheel.WHEEL_SIZE - 1) * 1000
+                    && timeout <= TimerWheel.WHEEL_SIZE * 1000, "timeout " + timeout);
+        this.advance(TimerWheel.WHEEL_SIZE - 1);
+        check_fired(new String[] {"near"});
+        this.advance(1);
+        check_fired(new String[] {"near", "far"});
+    }
+
+    public void test_late_expire() {
+        // The select loop is late by more than one revolution.
+        this.add(1, "a");
+        this.add(TimerWheel.WHEEL_SIZE + 100, "b");
+        this.add(3 * TimerWheel.WHEEL_SIZE, "c");
+        this.advance(2 * TimerWheel.WHEEL_SIZE);
+        check_fired(new String[] {"a", "b"});
+        check(this.wheel.timeout() > 0, "c has expired");
+        this.advance(TimerWheel.WHEEL_SIZE + 1);
+        check_fired(new String[] {"a", "b", "c"});
+    }
+
+    public void test_wraparound() {
+        // Move the current tick close to the end of the slots array.
+        this.advance(2 * TimerWheel.WHEEL_SIZE - 3);
+        for (int i = 1; i <= 6; i++)
+            this.add(i, String.valueOf(i));
+        for (int i = 1; i <= 7; i++)
+            this.advance(1);
+        check_fired(new String[] {"1", "2", "3", "4", "5", "6"});
+        check_equal(0, this.wheel.size);
+    }
+
+    public void test_cancel() {
+        TimerWheel.Timeout a = this.add(1, "a");
+        this.add(5, "b");
+        a.cancelled = true;
+        this.wheel.remove(a);
+        this.wheel.remove(a);
+        check_equal(1, this.wheel.size);
+
+        // The nearest deadline is a lower bound until the next expiration.
+        long timeout = this.wheel.timeout();
+        check(timeout > 1900 && timeout <= 2000, "timeout " + timeout);
+        this.advance(2);
+        check_fired(new String[0]);
+        timeout = this.wheel.timeout();
+        check(timeout > 3900 && timeout <= 4000, "timeout " + timeout);
+        this.advance(4);
+        check_fired(new String[] {"b"});
+    }
+
+    public void test_cancel_expired() {
+        // A Timeout cancelled after being unlinked by expire() does not run.
+        final TimerWheel.Timeout b = this.add(1, "b");
+        this.wheel.add(new TimerWheel.Timeout(null, 1000, new Runnable() {
+            public void run() { b.cancelled = true; }
+        }));
+        this.advance(2);
+        check_fired(new String[0]);
+    }
+
+    public void test_cancel_all() {
+        TimerWheel.Timeout a = this.add(1, "a");
+        this.wheel.remove(a);
+        check_equal(-1, this.wheel.timeout());
+        check_equal(Long.MAX_VALUE, this.wheel.nearest);
+    }
+
+    public void test_task_adds_timeout() {
+        this.wheel.add(new TimerWheel.Timeout(null, 1000, new Runnable() {
+            public void run() { add(2, "next"); }
+        }));
+        this.advance(2);
+        check_fired(new String[0]);
+        check_equal(1, this.wheel.size);
+        long timeout = this.wheel.timeout();
+        check(timeout > 2900 && timeout <= 3000, "timeout " + timeout);
+        this.advance(2);
+        check_fired(new String[0]);
+        this.advance(1);
+        check_fired(new String[] {"next"});
+    }
+}